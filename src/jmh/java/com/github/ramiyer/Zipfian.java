@@ -0,0 +1,48 @@
+package com.github.ramiyer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Zipfian distribution over {@code [0, items)}: item {@code i} is drawn
+ * with probability proportional to {@code 1 / (i + 1)^exponent}, so a
+ * few low items are hot and the long tail is cold. An exponent of 0 is
+ * uniform.
+ * <p>
+ * Benchmarks draw a fixed array of samples up front so that the
+ * distribution itself is not part of the measurement.
+ */
+public final class Zipfian
+{
+
+    private final double[] cdf;
+
+    public Zipfian(int items, double exponent)
+    {
+        cdf = new double[items];
+        double sum = 0;
+        for (int i = 0; i < items; i++) {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < items; i++) {
+            cdf[i] /= sum;
+        }
+    }
+
+    public int next(Random random)
+    {
+        int index = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min((index >= 0) ? index : -index - 1, cdf.length - 1);
+    }
+
+    public int[] samples(int count, long seed)
+    {
+        Random random = new Random(seed);
+        int[] samples = new int[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = next(random);
+        }
+        return samples;
+    }
+}
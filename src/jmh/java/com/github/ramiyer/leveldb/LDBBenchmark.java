@@ -0,0 +1,158 @@
+package com.github.ramiyer.leveldb;
+
+import com.github.ramiyer.Zipfian;
+import com.google.common.base.Strings;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.impl.DbImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.iq80.leveldb.impl.Iq80DBFactory.bytes;
+
+/**
+ * Throughput of {@link LDB} point reads, writes and prefix scans over a
+ * preloaded store, with keys drawn uniformly or with Zipfian skew.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LDBBenchmark
+{
+
+    private static final int SAMPLES = 1 << 20;
+
+    private static final int LOAD_BATCH = 10000;
+
+    @Param({"10000", "100000"})
+    public int keyCount;
+
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    @Param({"0.0", "0.99"})
+    public double skew;
+
+    private File directory;
+
+    private LDB ldb;
+
+    private String[] keys;
+
+    private String value;
+
+    private int[] samples;
+
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+
+        private int next;
+
+        int nextIndex(int[] samples)
+        {
+            return samples[next++ & (samples.length - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        directory = Files.createTempDirectory("ldb-benchmark").toFile();
+        Options options = new Options();
+        options.createIfMissing(true);
+        ldb = new LDB(new DbImpl(options, directory));
+
+        value = Strings.repeat("v", valueSize);
+        keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = String.format("k%08d", i);
+        }
+        for (int start = 0; start < keyCount; start += LOAD_BATCH) {
+            int from = start;
+            ldb.put(writeBatch -> {
+                for (int i = from; i < Math.min(from + LOAD_BATCH, keyCount); i++) {
+                    writeBatch.put(keys[i], bytes(value));
+                }
+            });
+        }
+
+        // hot keys are spread over the key space rather than clustered
+        List<String> shuffled = Arrays.asList(keys.clone());
+        Collections.shuffle(shuffled, new Random(7));
+        keys = shuffled.toArray(new String[keyCount]);
+        samples = new Zipfian(keyCount, skew).samples(SAMPLES, 42);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        ldb.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.delete(file.toPath());
+            }
+        }
+        Files.delete(directory.toPath());
+    }
+
+    @Benchmark
+    public String get(Cursor cursor)
+    {
+        return ldb.get(keys[cursor.nextIndex(samples)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String getContended(Cursor cursor)
+    {
+        return ldb.get(keys[cursor.nextIndex(samples)]);
+    }
+
+    @Benchmark
+    public void put(Cursor cursor)
+    {
+        ldb.put(keys[cursor.nextIndex(samples)], value);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void putContended(Cursor cursor)
+    {
+        ldb.put(keys[cursor.nextIndex(samples)], value);
+    }
+
+    /**
+     * Scans the hundred keys sharing all but the last two digits.
+     */
+    @Benchmark
+    public List<String> findByPrefix(Cursor cursor)
+    {
+        String key = keys[cursor.nextIndex(samples)];
+        return ldb.findByPrefix(key.substring(0, key.length() - 2), 0);
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.ramiyer.nicety;
+
+import com.github.ramiyer.Zipfian;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closure and cycle queries on {@link DirectedGraph} for a few graph
+ * shapes. Query roots are drawn with Zipfian skew over the vertices.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DirectedGraphBenchmark
+{
+
+    private static final int SAMPLES = 1 << 16;
+
+    public enum Shape
+    {
+        /**
+         * A single path 0 -> 1 -> ... -> n-1.
+         */
+        CHAIN,
+
+        /**
+         * Four edges from every vertex to random higher vertices.
+         */
+        RANDOM_DAG,
+
+        /**
+         * Strongly connected clusters of fifty vertices, each a ring plus
+         * random chords, linked one after another.
+         */
+        DENSE_SCC
+    }
+
+    @Param({"CHAIN", "RANDOM_DAG", "DENSE_SCC"})
+    public Shape shape;
+
+    @Param({"1000", "5000"})
+    public int vertices;
+
+    @Param({"0.99"})
+    public double skew;
+
+    private DirectedGraph<Integer> graph;
+
+    private int[] roots;
+
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+
+        private int next;
+
+        int nextRoot(int[] roots)
+        {
+            return roots[next++ & (roots.length - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        graph = new DirectedGraph<>();
+        Random random = new Random(42);
+        switch (shape) {
+            case CHAIN:
+                for (int i = 0; i + 1 < vertices; i++) {
+                    graph.addEdge(i, i + 1);
+                }
+                break;
+            case RANDOM_DAG:
+                for (int i = 0; i + 1 < vertices; i++) {
+                    for (int j = 0; j < 4; j++) {
+                        graph.addEdge(i, i + 1 + random.nextInt(vertices - i - 1));
+                    }
+                }
+                break;
+            case DENSE_SCC:
+                int cluster = 50;
+                for (int start = 0; start < vertices; start += cluster) {
+                    int size = Math.min(cluster, vertices - start);
+                    for (int i = 0; i < size; i++) {
+                        graph.addEdge(start + i, start + (i + 1) % size);
+                        for (int j = 0; j < 8; j++) {
+                            graph.addEdge(start + i, start + random.nextInt(size));
+                        }
+                    }
+                    if (start + size < vertices) {
+                        graph.addEdge(start, start + size);
+                    }
+                }
+                break;
+        }
+        roots = new Zipfian(vertices, skew).samples(SAMPLES, 42);
+    }
+
+    @Benchmark
+    public Set<Integer> sinksClosure(Cursor cursor)
+    {
+        return graph.sinksClosure(cursor.nextRoot(roots));
+    }
+
+    @Benchmark
+    public Set<Integer> transitiveClosure(Cursor cursor)
+    {
+        return graph.transitiveClosure(cursor.nextRoot(roots));
+    }
+
+    @Benchmark
+    public Set<Integer> sinksWithinThreeHops(Cursor cursor)
+    {
+        return graph.sinksWithinHops(cursor.nextRoot(roots), 3);
+    }
+
+    @Benchmark
+    public Set<Set<Integer>> allCycles()
+    {
+        return graph.allCycles();
+    }
+
+    @Benchmark
+    public Set<Set<Integer>> stronglyConnectedComponents()
+    {
+        return graph.stronglyConnectedComponents();
+    }
+}
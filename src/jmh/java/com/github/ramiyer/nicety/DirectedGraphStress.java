@@ -0,0 +1,201 @@
+package com.github.ramiyer.nicety;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded stress run for a consistent {@link DirectedGraph}.
+ * Writer threads add and remove edges and nodes over a small key space
+ * so they collide often, while reader threads take snapshots and check
+ * that every forward edge has its reverse edge and the other way round,
+ * run Tarjan over them, and check that the snapshot still shows the same
+ * edges afterwards. Once the writers stop, every node is removed and the
+ * vertex map must be empty, since all snapshots were released.
+ * <p>
+ * Besides the mismatch count it reports the latency distribution of
+ * writes and of taking a snapshot, so that a run with readers can be
+ * compared against a run without to see whether snapshots stall writers.
+ * The process exits with status 1 if any check failed.
+ * <p>
+ * Usage: {@code DirectedGraphStress [writers] [readers] [seconds] [keys]}
+ */
+public class DirectedGraphStress
+{
+
+    /**
+     * Latencies kept per thread; older ones are overwritten.
+     */
+    private static final int SAMPLES = 1 << 20;
+
+    /**
+     * Most recent latencies of one thread, plus the worst one seen.
+     */
+    private static final class Latencies
+    {
+
+        private final long[] samples = new long[SAMPLES];
+
+        private long count;
+
+        private long max;
+
+        void record (long nanos)
+        {
+            samples[(int) (count++ & (SAMPLES - 1))] = nanos;
+            max = Math.max(max, nanos);
+        }
+
+        static String summarize (Latencies[] all)
+        {
+            long max = 0;
+            long total = 0;
+            for (Latencies latencies : all) {
+                max = Math.max(max, latencies.max);
+                total += Math.min(latencies.count, SAMPLES);
+            }
+            long[] merged = new long[(int) total];
+            int offset = 0;
+            for (Latencies latencies : all) {
+                int kept = (int) Math.min(latencies.count, SAMPLES);
+                System.arraycopy(latencies.samples, 0, merged, offset, kept);
+                offset += kept;
+            }
+            if (merged.length == 0) {
+                return "none";
+            }
+            Arrays.sort(merged);
+            return String.format("p50=%s p99=%s p99.9=%s max=%s", micros(merged, 0.5), micros(merged, 0.99),
+                                 micros(merged, 0.999), String.format("%.1fus", max / 1e3));
+        }
+
+        private static String micros (long[] sorted, double percentile)
+        {
+            return String.format("%.1fus", sorted[(int) Math.min(sorted.length - 1, percentile * sorted.length)] / 1e3);
+        }
+    }
+
+    public static void main (String[] args) throws InterruptedException
+    {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int keys = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+        DirectedGraph<Integer> graph = new DirectedGraph<>(true);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong writes = new AtomicLong();
+        AtomicLong snapshots = new AtomicLong();
+        AtomicLong inconsistencies = new AtomicLong();
+        AtomicLong changed = new AtomicLong();
+        Latencies[] writeLatencies = new Latencies[writers];
+        Latencies[] snapshotLatencies = new Latencies[readers];
+
+        Thread[] threads = new Thread[writers + readers];
+        for (int i = 0; i < writers; i++) {
+            Latencies latencies = writeLatencies[i] = new Latencies();
+            threads[i] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                while (running.get()) {
+                    int source = random.nextInt(keys);
+                    int sink = random.nextInt(keys);
+                    int op = random.nextInt(100);
+                    long start = System.nanoTime();
+                    if (op < 60) {
+                        graph.addEdge(source, sink);
+                    }
+                    else if (op < 95) {
+                        graph.removeEdge(source, sink);
+                    }
+                    else {
+                        graph.removeNode(source);
+                    }
+                    latencies.record(System.nanoTime() - start);
+                    count++;
+                }
+                writes.addAndGet(count);
+            }, "writer-" + i);
+        }
+        for (int i = 0; i < readers; i++) {
+            Latencies latencies = snapshotLatencies[i] = new Latencies();
+            threads[writers + i] = new Thread(() -> {
+                while (running.get()) {
+                    long start = System.nanoTime();
+                    DirectedGraph<Integer> snapshot = graph.snapshot();
+                    latencies.record(System.nanoTime() - start);
+                    Map<Integer, Set<Integer>> before = sinks(snapshot);
+                    inconsistencies.addAndGet(countInconsistencies(snapshot));
+                    snapshot.stronglyConnectedComponents();
+                    if (!sinks(snapshot).equals(before)) {
+                        changed.incrementAndGet();
+                    }
+                    snapshot.release();
+                    snapshots.incrementAndGet();
+                }
+            }, "reader-" + i);
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("writers=%d readers=%d keys=%d elapsed=%.1fs%n", writers, readers, keys, elapsed);
+        System.out.printf("writes/s=%.0f snapshots/s=%.1f%n", writes.get() / elapsed, snapshots.get() / elapsed);
+        System.out.printf("write latency:    %s%n", Latencies.summarize(writeLatencies));
+        System.out.printf("snapshot latency: %s%n", Latencies.summarize(snapshotLatencies));
+        DirectedGraph<Integer> last = graph.snapshot();
+        long remaining = countInconsistencies(last);
+        last.release();
+        graph.removeNodes(new ArrayList<>(graph.getVertexNodes()));
+        int unreclaimed = graph.storedVertexCount();
+        System.out.printf("inconsistencies=%d changed=%d final=%d unreclaimed=%d%n", inconsistencies.get(),
+                          changed.get(), remaining, unreclaimed);
+        if (inconsistencies.get() > 0 || changed.get() > 0 || remaining > 0 || unreclaimed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static Map<Integer, Set<Integer>> sinks (DirectedGraph<Integer> graph)
+    {
+        Map<Integer, Set<Integer>> sinks = new HashMap<>();
+        for (Integer key : graph.getVertexNodes()) {
+            sinks.put(key, new HashSet<>(graph.getSinkEdges(key)));
+        }
+        return sinks;
+    }
+
+    private static long countInconsistencies (DirectedGraph<Integer> graph)
+    {
+        long count = 0;
+        for (Integer key : graph.getVertexNodes()) {
+            for (Integer sink : graph.getSinkEdges(key)) {
+                Set<Integer> sources = graph.getSourceEdges(sink);
+                if (sources == null || !sources.contains(key)) {
+                    count++;
+                }
+            }
+            for (Integer source : graph.getSourceEdges(key)) {
+                Set<Integer> sinks = graph.getSinkEdges(source);
+                if (sinks == null || !sinks.contains(key)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
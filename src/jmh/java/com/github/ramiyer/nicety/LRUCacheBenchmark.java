@@ -0,0 +1,118 @@
+package com.github.ramiyer.nicety;
+
+import com.github.ramiyer.Zipfian;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link LRUCache} alone and under contention. Keys are
+ * drawn from a key space ten times the capacity, uniformly or with
+ * Zipfian skew, so the hit rate follows the access pattern.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LRUCacheBenchmark
+{
+
+    private static final int SAMPLES = 1 << 20;
+
+    @Param({"100", "10000"})
+    public int capacity;
+
+    @Param({"0.0", "0.99"})
+    public double skew;
+
+    private LRUCache<Integer, Integer> cache;
+
+    private int[] samples;
+
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+
+        private int next;
+
+        int nextKey(int[] samples)
+        {
+            return samples[next++ & (samples.length - 1)];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        int keySpace = capacity * 10;
+        samples = new Zipfian(keySpace, skew).samples(SAMPLES, 42);
+        cache = new LRUCache<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            cache.add(samples[i], samples[i]);
+        }
+    }
+
+    @Benchmark
+    public Integer get(Cursor cursor)
+    {
+        return cache.get(cursor.nextKey(samples));
+    }
+
+    @Benchmark
+    public void add(Cursor cursor)
+    {
+        int key = cursor.nextKey(samples);
+        cache.add(key, key);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Integer getContended(Cursor cursor)
+    {
+        return cache.get(cursor.nextKey(samples));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void addContended(Cursor cursor)
+    {
+        int key = cursor.nextKey(samples);
+        cache.add(key, key);
+    }
+
+    /**
+     * Read-through usage: six readers and two writers on one cache.
+     */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public Integer mixedGet(Cursor cursor)
+    {
+        return cache.get(cursor.nextKey(samples));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public void mixedAdd(Cursor cursor)
+    {
+        int key = cursor.nextKey(samples);
+        cache.add(key, key);
+    }
+}
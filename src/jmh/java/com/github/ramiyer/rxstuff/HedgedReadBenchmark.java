@@ -0,0 +1,104 @@
+package com.github.ramiyer.rxstuff;
+
+import com.github.ramiyer.leveldb.KeyValueDataStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latency distribution of reads from a store that usually answers in
+ * about 100 microseconds but now and then stalls, read directly and
+ * through a {@link LatencyControlledStore} hedging to a replica with the
+ * same behaviour. Compare the p0.99 and p0.999 rows.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class HedgedReadBenchmark
+{
+
+    private static final long SERVICE_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    @Param({"0.01"})
+    public double stallProbability;
+
+    @Param({"20"})
+    public int stallMillis;
+
+    private KeyValueDataStore<String, String> direct;
+
+    private LatencyControlledStore<String, String> hedged;
+
+    /**
+     * Sleeps for the service time, or for the stall time with the given
+     * probability, independently on every call.
+     */
+    private static final class StallingStore implements KeyValueDataStore<String, String>
+    {
+
+        private final double stallProbability;
+
+        private final long stallNanos;
+
+        StallingStore(double stallProbability, long stallNanos)
+        {
+            this.stallProbability = stallProbability;
+            this.stallNanos = stallNanos;
+        }
+
+        @Override
+        public void put(String key, String value)
+        {
+        }
+
+        @Override
+        public String get(String key)
+        {
+            boolean stall = ThreadLocalRandom.current().nextDouble() < stallProbability;
+            LockSupport.parkNanos(stall ? stallNanos : SERVICE_NANOS);
+            return key;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        long stallNanos = TimeUnit.MILLISECONDS.toNanos(stallMillis);
+        direct = new StallingStore(stallProbability, stallNanos);
+        hedged = new LatencyControlledStore<>(direct, new StallingStore(stallProbability, stallNanos),
+                                              new LatencyControlledStore.Options()
+                                                      .hedgePercentile(0.95)
+                                                      .initialHedgeDelay(1, TimeUnit.MILLISECONDS)
+                                                      .deadline(1, TimeUnit.SECONDS));
+    }
+
+    @Benchmark
+    public String direct()
+    {
+        return direct.get("k");
+    }
+
+    @Benchmark
+    public String hedged()
+    {
+        return hedged.get("k");
+    }
+}
@@ -0,0 +1,350 @@
+package com.github.ramiyer.jdbc;
+
+import com.github.ramiyer.leveldb.DataStoreException;
+import com.github.ramiyer.leveldb.KeyValueDataStore;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.apache.commons.dbcp.BasicDataSource;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link KeyValueDataStore} kept in a two column table of a relational
+ * database, reached through a pool of connections.
+ * <p>
+ * Writes are multi-row upserts, many keys per statement and all chunks of
+ * a call in one transaction. Multi-gets are a single {@code = ANY(array)}
+ * query on PostgreSQL and {@code IN} lists on SQLite. Prefix scans are
+ * range queries on the primary key that stream rows with a bounded fetch
+ * size.
+ * <p>
+ * SQLite runs in WAL mode, so readers proceed while a write is in
+ * progress; writers are serialized inside the store since SQLite admits
+ * only one at a time anyway. The PostgreSQL upsert needs server 9.5 or
+ * later.
+ */
+public class JdbcDataStore implements KeyValueDataStore<String, String>, Closeable {
+
+    public enum Dialect {
+
+        SQLITE("org.sqlite.JDBC", 999, "TEXT") {
+            @Override
+            String upsert(String table, int rows) {
+                return "INSERT OR REPLACE INTO " + table + " (k, v) VALUES " + valuesList(rows);
+            }
+        },
+
+        POSTGRESQL("org.postgresql.Driver", 32767, "TEXT COLLATE \"C\"") {
+            @Override
+            String upsert(String table, int rows) {
+                return "INSERT INTO " + table + " (k, v) VALUES " + valuesList(rows)
+                       + " ON CONFLICT (k) DO UPDATE SET v = EXCLUDED.v";
+            }
+        };
+
+        private final String driverClassName;
+
+        private final int maxParameters;
+
+        /**
+         * Key column type. Keys compare bytewise so that prefix ranges
+         * match {@code String.startsWith}.
+         */
+        private final String keyType;
+
+        Dialect(String driverClassName, int maxParameters, String keyType) {
+            this.driverClassName = driverClassName;
+            this.maxParameters = maxParameters;
+            this.keyType = keyType;
+        }
+
+        abstract String upsert(String table, int rows);
+    }
+
+    private static final int MAX_ROWS_PER_UPSERT = 1000;
+
+    private static final int DEFAULT_FETCH_SIZE = 1000;
+
+    private final BasicDataSource dataSource;
+
+    private final Dialect dialect;
+
+    private final String table;
+
+    /**
+     * Rows per upsert statement, two parameters each.
+     */
+    final int rowsPerUpsert;
+
+    private final int fetchSize;
+
+    /**
+     * Held by writers on SQLite, which allows a single writer at a time.
+     * Without it concurrent writers would spin on the busy timeout.
+     */
+    private final Lock writeLock;
+
+    public JdbcDataStore(BasicDataSource dataSource, Dialect dialect, String table, int fetchSize) throws DataStoreException {
+        this.dataSource = dataSource;
+        this.dialect = dialect;
+        this.table = table;
+        this.rowsPerUpsert = Math.min(MAX_ROWS_PER_UPSERT, dialect.maxParameters / 2);
+        this.fetchSize = fetchSize;
+        this.writeLock = (dialect == Dialect.SQLITE) ? new ReentrantLock() : null;
+        createTable();
+    }
+
+    /**
+     * A store in a local SQLite file, in WAL mode.
+     */
+    public static JdbcDataStore sqlite(File file, int maxConnections) throws DataStoreException {
+        BasicDataSource dataSource = dataSource(Dialect.SQLITE, "jdbc:sqlite:" + file.getAbsolutePath(), maxConnections);
+        dataSource.setConnectionInitSqls(Arrays.asList("PRAGMA journal_mode=WAL",
+                                                       "PRAGMA synchronous=NORMAL",
+                                                       "PRAGMA busy_timeout=10000"));
+        return new JdbcDataStore(dataSource, Dialect.SQLITE, "kv", DEFAULT_FETCH_SIZE);
+    }
+
+    public static JdbcDataStore postgres(String url, String user, String password, int maxConnections) throws DataStoreException {
+        BasicDataSource dataSource = dataSource(Dialect.POSTGRESQL, url, maxConnections);
+        dataSource.setUsername(user);
+        dataSource.setPassword(password);
+        return new JdbcDataStore(dataSource, Dialect.POSTGRESQL, "kv", DEFAULT_FETCH_SIZE);
+    }
+
+    private static BasicDataSource dataSource(Dialect dialect, String url, int maxConnections) {
+        BasicDataSource dataSource = new BasicDataSource();
+        dataSource.setDriverClassName(dialect.driverClassName);
+        dataSource.setUrl(url);
+        dataSource.setMaxActive(maxConnections);
+        dataSource.setMaxIdle(maxConnections);
+        dataSource.setPoolPreparedStatements(true);
+        return dataSource;
+    }
+
+    public void put(String key, String value) throws DataStoreException {
+        putAll(Collections.singletonMap(key, value));
+    }
+
+    /**
+     * Upsert all entries in one transaction, using as few statements as
+     * the dialect's parameter limit allows.
+     */
+    public void putAll(Map<String, String> entries) throws DataStoreException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        if (writeLock != null) {
+            writeLock.lock();
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                List<Map.Entry<String, String>> rows = new ArrayList<>(entries.entrySet());
+                // the full-size statement is only worth preparing when there
+                // is a full chunk to run it on; a single put gets one row
+                int fullRows = rows.size() - rows.size() % rowsPerUpsert;
+                if (fullRows > 0) {
+                    try (PreparedStatement full = connection.prepareStatement(dialect.upsert(table, rowsPerUpsert))) {
+                        for (List<Map.Entry<String, String>> chunk : Lists.partition(rows.subList(0, fullRows), rowsPerUpsert)) {
+                            bindRows(full, chunk);
+                            full.addBatch();
+                        }
+                        full.executeBatch();
+                    }
+                }
+                if (fullRows < rows.size()) {
+                    try (PreparedStatement partial = connection.prepareStatement(dialect.upsert(table, rows.size() - fullRows))) {
+                        bindRows(partial, rows.subList(fullRows, rows.size()));
+                        partial.executeUpdate();
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new DataStoreException("failed to write " + entries.size() + " entries to " + table, e);
+        } finally {
+            if (writeLock != null) {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * {@link KeyValueDataStore#get} declares no checked exception, so a
+     * failed read is rethrown unchecked, naming the key and the table.
+     */
+    public String get(String key) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement("SELECT v FROM " + table + " WHERE k = ?")) {
+            statement.setString(1, key);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                //noinspection ReturnOfNull
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException("failed to read key " + key + " from " + table, e);
+        }
+    }
+
+    /**
+     * Fetch many keys in as few round trips as the dialect allows.
+     *
+     * @return the values of the keys that are present
+     */
+    public Map<String, String> getAll(Collection<String> keys) throws DataStoreException {
+        Map<String, String> values = new HashMap<>(keys.size() * 2);
+        if (keys.isEmpty()) {
+            return values;
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            if (dialect == Dialect.POSTGRESQL) {
+                Array array = connection.createArrayOf("text", keys.toArray());
+                try (PreparedStatement statement = connection.prepareStatement("SELECT k, v FROM " + table + " WHERE k = ANY (?)")) {
+                    statement.setArray(1, array);
+                    collect(statement, values);
+                } finally {
+                    array.free();
+                }
+            } else {
+                for (List<String> chunk : Iterables.partition(keys, dialect.maxParameters)) {
+                    String sql = "SELECT k, v FROM " + table + " WHERE k IN (" + placeholders(chunk.size()) + ")";
+                    try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                        for (int i = 0; i < chunk.size(); i++) {
+                            statement.setString(i + 1, chunk.get(i));
+                        }
+                        collect(statement, values);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new DataStoreException("failed to read " + keys.size() + " keys from " + table, e);
+        }
+        return values;
+    }
+
+    /**
+     * Same contract as {@code LDB.findByPrefix}.
+     */
+    public List<String> findByPrefix(String prefix, int substringStartsAt) throws DataStoreException {
+        List<String> keys = Lists.newArrayList();
+        scanPrefix(prefix, (key, value) -> keys.add(key.substring(substringStartsAt)));
+        return keys;
+    }
+
+    /**
+     * Stream every entry whose key starts with the prefix, in key order.
+     * Rows are fetched fetchSize at a time rather than all at once.
+     */
+    public void scanPrefix(String prefix, BiConsumer<String, String> consumer) throws DataStoreException {
+        String upperBound = prefixUpperBound(prefix);
+        String sql = "SELECT k, v FROM " + table + " WHERE k >= ?"
+                     + (upperBound == null ? "" : " AND k < ?") + " ORDER BY k";
+        try (Connection connection = dataSource.getConnection()) {
+            // PostgreSQL only streams with a cursor inside a transaction
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setFetchSize(fetchSize);
+                statement.setString(1, prefix);
+                if (upperBound != null) {
+                    statement.setString(2, upperBound);
+                }
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        consumer.accept(resultSet.getString(1), resultSet.getString(2));
+                    }
+                }
+            } finally {
+                connection.commit();
+            }
+        } catch (SQLException e) {
+            throw new DataStoreException("failed to scan " + table + " for prefix " + prefix, e);
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            dataSource.close();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void createTable() throws DataStoreException {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + table
+                              + " (k " + dialect.keyType + " PRIMARY KEY, v TEXT)");
+        } catch (SQLException e) {
+            throw new DataStoreException("failed to create " + table, e);
+        }
+    }
+
+    private static void bindRows(PreparedStatement statement, List<Map.Entry<String, String>> rows) throws SQLException {
+        int index = 1;
+        for (Map.Entry<String, String> row : rows) {
+            statement.setString(index++, row.getKey());
+            statement.setString(index++, row.getValue());
+        }
+    }
+
+    private static void collect(PreparedStatement statement, Map<String, String> values) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                values.put(resultSet.getString(1), resultSet.getString(2));
+            }
+        }
+    }
+
+    private static String valuesList(int rows) {
+        StringBuilder builder = new StringBuilder(rows * 7);
+        for (int i = 0; i < rows; i++) {
+            builder.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+        }
+        return builder.toString();
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder(count * 3);
+        for (int i = 0; i < count; i++) {
+            builder.append(i == 0 ? "?" : ", ?");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * The smallest string greater than every string with the prefix,
+     * or null if there is none.
+     */
+    static String prefixUpperBound(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if (end == 0) {
+            return null;
+        }
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+}
@@ -0,0 +1,255 @@
+package com.github.ramiyer.leveldb;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongConsumer;
+
+import static org.iq80.leveldb.impl.Iq80DBFactory.asString;
+
+/**
+ * Ordered feed of the writes committed to an {@link LDB}.
+ * <p>
+ * Every committed {@code put}, {@code delete} and {@code put(AtomicWrite)}
+ * becomes one {@link MutationBatch} with the next sequence number. The
+ * most recent batches are kept in a bounded replay buffer, so a consumer
+ * that remembers the last sequence it processed can resume from there,
+ * provided the buffer still reaches back that far. Otherwise it gets a
+ * {@link CursorExpiredException} and has to rescan the store.
+ * <p>
+ * Consumers either pull batches by sequence with {@link #get}, using a
+ * listener only as a wake-up, or have them pushed with {@link #subscribe}.
+ * <p>
+ * Sequence numbers start at 1 and carry on across reopens: the
+ * {@link LDB} stores the last sequence with every write and seeds the
+ * feed with it. The replay buffer starts out empty, so after a reopen
+ * only a cursor at the stored sequence or later can resume.
+ */
+public class ChangeFeed
+{
+
+    public static final class Mutation
+    {
+
+        public final String key;
+
+        /**
+         * New value, or null for a delete.
+         */
+        public final byte[] value;
+
+        private Mutation(String key, byte[] value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+
+        static Mutation put(String key, byte[] value)
+        {
+            return new Mutation(key, value);
+        }
+
+        static Mutation delete(String key)
+        {
+            return new Mutation(key, null);
+        }
+
+        public boolean isDelete()
+        {
+            return value == null;
+        }
+
+        public String valueAsString()
+        {
+            //noinspection ReturnOfNull
+            return (value == null) ? null : asString(value);
+        }
+    }
+
+    public static final class MutationBatch
+    {
+
+        public final long sequence;
+
+        public final List<Mutation> mutations;
+
+        MutationBatch(long sequence, List<Mutation> mutations)
+        {
+            this.sequence = sequence;
+            this.mutations = Collections.unmodifiableList(mutations);
+        }
+    }
+
+    /**
+     * Receives batches in sequence order. Called while the feed is
+     * locked, so implementations should only hand the batch off.
+     */
+    public interface Listener
+    {
+        public void onBatch(MutationBatch batch);
+    }
+
+    /**
+     * The batches after a cursor are no longer in the replay buffer.
+     */
+    public static class CursorExpiredException extends DataStoreException
+    {
+
+        public CursorExpiredException(String message)
+        {
+            super(message, null);
+        }
+    }
+
+    /**
+     * Slot {@code sequence % capacity} holds the batch with that sequence
+     * until it is overwritten by the batch one capacity later.
+     */
+    private final AtomicReferenceArray<MutationBatch> buffer;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Written after the batch is in the buffer, so readers that see a
+     * sequence here also see its batch.
+     */
+    private volatile long lastSequence;
+
+    /**
+     * First sequence committed through this instance. Earlier batches
+     * were committed before the store was reopened and are not buffered.
+     */
+    private final long firstSequence;
+
+    /**
+     * @param lastSequence
+     *         last sequence committed before the store was opened, 0 for a
+     *         new store
+     */
+    ChangeFeed(int capacity, long lastSequence)
+    {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.buffer = new AtomicReferenceArray<>(capacity);
+        this.lastSequence = lastSequence;
+        this.firstSequence = lastSequence + 1;
+    }
+
+    public int getCapacity()
+    {
+        return buffer.length();
+    }
+
+    public long getLastSequence()
+    {
+        return lastSequence;
+    }
+
+    /**
+     * Check that the batches after the cursor can be delivered: none of
+     * them has been dropped from the buffer or committed before the store
+     * was reopened, and the cursor is not past the last committed batch.
+     */
+    public void checkCursor(long afterSequence) throws CursorExpiredException
+    {
+        long last = lastSequence;
+        if (afterSequence > last) {
+            throw new CursorExpiredException("cursor " + afterSequence + " is ahead of the last sequence " + last);
+        }
+        long oldest = oldestBuffered(last);
+        if (afterSequence + 1 < oldest) {
+            throw new CursorExpiredException("batches after " + afterSequence
+                                             + " were dropped; oldest buffered is " + oldest);
+        }
+    }
+
+    /**
+     * Read a batch from the replay buffer without locking the feed. Check
+     * the cursor with {@link #checkCursor} before polling from it.
+     *
+     * @return the batch, or null if it has not been committed yet
+     */
+    public MutationBatch get(long sequence) throws CursorExpiredException
+    {
+        if (sequence > lastSequence) {
+            return null;
+        }
+        MutationBatch batch = buffer.get(slot(sequence));
+        if (batch == null || batch.sequence != sequence) {
+            throw new CursorExpiredException("batch " + sequence + " was dropped; oldest buffered is "
+                                             + oldestBuffered(lastSequence));
+        }
+        return batch;
+    }
+
+    /**
+     * Deliver every batch committed from now on.
+     *
+     * @return unregisters the listener when run
+     */
+    public Runnable addListener(Listener listener)
+    {
+        listeners.add(listener);
+        return () -> listeners.remove(listener);
+    }
+
+    /**
+     * Replay the buffered batches after the cursor to the listener, then
+     * deliver every later batch as it is committed.
+     *
+     * @param afterSequence
+     *         last sequence the consumer has processed; 0 for everything
+     *         since the store was created, while that is still buffered,
+     *         or {@link #getLastSequence()} for live batches only
+     *
+     * @return unregisters the listener when run
+     * @throws CursorExpiredException
+     *         if the cursor fails {@link #checkCursor}
+     */
+    public synchronized Runnable subscribe(long afterSequence, Listener listener) throws CursorExpiredException
+    {
+        checkCursor(afterSequence);
+        for (long sequence = afterSequence + 1; sequence <= lastSequence; sequence++) {
+            listener.onBatch(buffer.get(slot(sequence)));
+        }
+        listeners.add(listener);
+        return () -> listeners.remove(listener);
+    }
+
+    /**
+     * Run the write and, once it has succeeded, publish its mutations.
+     * Holding the feed lock across both keeps sequence numbers in commit
+     * order.
+     *
+     * @param write
+     *         performs the write, given the batch's sequence to store
+     *         along with it, or 0 when there are no mutations and so no
+     *         batch
+     */
+    synchronized void commit(List<Mutation> mutations, LongConsumer write)
+    {
+        if (mutations.isEmpty()) {
+            write.accept(0);
+            return;
+        }
+        write.accept(lastSequence + 1);
+        MutationBatch batch = new MutationBatch(lastSequence + 1, mutations);
+        buffer.set(slot(batch.sequence), batch);
+        lastSequence = batch.sequence;
+        for (Listener listener : listeners) {
+            listener.onBatch(batch);
+        }
+    }
+
+    private long oldestBuffered(long last)
+    {
+        return Math.max(firstSequence, last - buffer.length() + 1);
+    }
+
+    private int slot(long sequence)
+    {
+        return (int) (sequence % buffer.length());
+    }
+}
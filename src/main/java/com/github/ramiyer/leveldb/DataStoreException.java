@@ -6,4 +6,17 @@ package com.github.ramiyer.leveldb;
 public class DataStoreException extends Exception
 {
 
+    public DataStoreException()
+    {
+    }
+
+    public DataStoreException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+
+    public DataStoreException(Throwable cause)
+    {
+        super(cause);
+    }
 }
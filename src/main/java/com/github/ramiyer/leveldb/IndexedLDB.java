@@ -0,0 +1,387 @@
+package com.github.ramiyer.leveldb;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.Striped;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.impl.DbImpl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import static org.iq80.leveldb.impl.Iq80DBFactory.asString;
+import static org.iq80.leveldb.impl.Iq80DBFactory.bytes;
+
+/**
+ * An {@link LDB} with secondary indexes over its values.
+ * <p>
+ * An index is a name and a function extracting attribute values from a
+ * stored value. For every attribute value there is an index entry
+ * {@code \0i\0<index>\0<attribute>\0<key>}, written and removed in the
+ * same {@link LDB.WriteBatch} as the primary entry it points to, so the
+ * index never disagrees with the data. Finding the keys with a given
+ * attribute is then a range scan over that index's keyspace.
+ * <p>
+ * Extractors must be deterministic: stale entries are found by running
+ * the extractor on the old value. Writes to one key are serialized by a
+ * striped lock so the old value read before the batch is still current
+ * when the batch is written. Keys may not be empty or start with
+ * {@code \0}, and index names and attribute values may not contain
+ * {@code \0}; a full scan of the underlying store sees the index entries
+ * first and should skip keys starting with {@code \0}.
+ * <p>
+ * An index added to a store that already holds data is maintained for
+ * every write from then on, and a {@link Backfill} job indexes the
+ * existing entries while the store keeps serving. Lookups on the index
+ * are refused until the job is done, after which it is recorded in the
+ * store as built.
+ */
+public class IndexedLDB implements KeyValueDataStore<String,String>
+{
+    private static final char SEPARATOR = '\u0000';
+
+    private static final String INDEX_PREFIX = "\u0000i\u0000";
+
+    private static final String BUILT_PREFIX = "\u0000b\u0000";
+
+    private static final byte[] EMPTY = new byte[0];
+
+    public static final class Index {
+        private final String name;
+
+        private final Function<String, ? extends Collection<String>> extractor;
+
+        private Index(String name, Function<String, ? extends Collection<String>> extractor) {
+            checkComponent("index name", name);
+            this.name = name;
+            this.extractor = extractor;
+        }
+
+        /**
+         * An index with at most one attribute per value; values for which
+         * the extractor returns null are not indexed.
+         */
+        public static Index of(String name, Function<String, String> extractor) {
+            return new Index(name, value -> {
+                String attribute = extractor.apply(value);
+                return (attribute == null) ? Collections.emptySet() : Collections.singleton(attribute);
+            });
+        }
+
+        /**
+         * An index with any number of attributes per value, such as tags.
+         */
+        public static Index multi(String name, Function<String, ? extends Collection<String>> extractor) {
+            return new Index(name, extractor);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        Set<String> attributes(String value) {
+            if (value == null) {
+                return Collections.emptySet();
+            }
+            Collection<String> attributes = extractor.apply(value);
+            for (String attribute : attributes) {
+                checkComponent("attribute of index " + name, attribute);
+            }
+            return ImmutableSet.copyOf(attributes);
+        }
+    }
+
+    private final LDB ldb;
+
+    private final Map<String, Index> indexes = new ConcurrentHashMap<>();
+
+    private final Set<String> built = ConcurrentHashMap.newKeySet();
+
+    private final Striped<Lock> keyLocks = Striped.lock(1024);
+
+    /**
+     * Shared by writes and held exclusively while an index is added, so
+     * that every write either commits before the index exists or sees it.
+     */
+    private final ReadWriteLock indexGate = new ReentrantReadWriteLock();
+
+    public IndexedLDB(LDB ldb) {
+        this.ldb = ldb;
+    }
+
+    /**
+     * Start maintaining the index on every write. Waits for the writes in
+     * progress, since they were prepared without the index; the backfill
+     * job sees everything they wrote.
+     *
+     * @return the job that indexes the entries already in the store, to
+     * be run on a thread of the caller's choosing, or null if the store
+     * records the index as built
+     */
+    public Backfill addIndex(Index index) {
+        indexGate.writeLock().lock();
+        try {
+            if (indexes.putIfAbsent(index.name, index) != null) {
+                throw new IllegalArgumentException("index " + index.name + " already exists");
+            }
+        } finally {
+            indexGate.writeLock().unlock();
+        }
+        if (ldb.get(BUILT_PREFIX + index.name) != null) {
+            built.add(index.name);
+            return null;
+        }
+        return new Backfill(index);
+    }
+
+    public boolean isBuilt(String indexName) {
+        return built.contains(indexName);
+    }
+
+    public void put(String key, String value) {
+        write(key, value);
+    }
+
+    public String get(String key) {
+        return ldb.get(key);
+    }
+
+    public void delete(String key) {
+        write(key, null);
+    }
+
+    /**
+     * Keys whose values have the attribute, in key order.
+     */
+    public List<String> lookup(String indexName, String attribute) {
+        checkBuilt(indexName);
+        checkComponent("attribute", attribute);
+        String prefix = INDEX_PREFIX + indexName + SEPARATOR + attribute + SEPARATOR;
+        return ldb.findByPrefix(prefix, prefix.length());
+    }
+
+    /**
+     * Keys whose values have an attribute with {@code from <= attribute < to},
+     * in attribute order and then key order. A key appears once for every
+     * matching attribute of its value. Attributes are ordered as LevelDB
+     * orders keys, by their UTF-8 bytes, which differs from
+     * {@link String#compareTo} for characters outside the basic plane.
+     *
+     * @param from inclusive lower bound, or null for no bound
+     * @param to exclusive upper bound, or null for no bound
+     */
+    public List<String> lookupRange(String indexName, String from, String to) {
+        checkBuilt(indexName);
+        String indexPrefix = INDEX_PREFIX + indexName + SEPARATOR;
+        byte[] end = (to == null) ? null : bytes(indexPrefix + to);
+        Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+        List<String> keys = new ArrayList<>();
+        try (DBIterator iterator = ldb.iterator()) {
+            for (iterator.seek(bytes(from == null ? indexPrefix : indexPrefix + from)); iterator.hasNext(); iterator.next()) {
+                byte[] entryBytes = iterator.peekNext().getKey();
+                if (end != null && comparator.compare(entryBytes, end) >= 0) {
+                    break;
+                }
+                String entry = asString(entryBytes);
+                if (!entry.startsWith(indexPrefix)) {
+                    break;
+                }
+                keys.add(entry.substring(entry.indexOf(SEPARATOR, indexPrefix.length()) + 1));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return keys;
+    }
+
+    public void close() throws IOException {
+        ldb.close();
+    }
+
+    /**
+     * Indexes the entries that were in the store when the index was added.
+     * <p>
+     * Keys are read from an iterator in batches. Each batch is re-read and
+     * written under the locks of its keys, so a concurrent write either
+     * lands before and is indexed from its new value, or after and
+     * replaces the entries written here. Running the job again after a
+     * failure is safe, since rewriting an index entry changes nothing.
+     */
+    public class Backfill implements Runnable {
+        private static final int BATCH_SIZE = 1000;
+
+        private final Index index;
+
+        private final AtomicLong indexed = new AtomicLong();
+
+        private volatile boolean cancelled;
+
+        private Backfill(Index index) {
+            this.index = index;
+        }
+
+        public Index getIndex() {
+            return index;
+        }
+
+        /**
+         * Number of keys processed so far.
+         */
+        public long getIndexed() {
+            return indexed.get();
+        }
+
+        /**
+         * Stop after the current batch; the index stays unbuilt.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public void run() {
+            List<String> batch = new ArrayList<>(BATCH_SIZE);
+            try (DBIterator iterator = ldb.iterator()) {
+                for (iterator.seekToFirst(); iterator.hasNext() && !cancelled; iterator.next()) {
+                    String key = asString(iterator.peekNext().getKey());
+                    // index entries, and keys written around this class
+                    // that it could not maintain entries for
+                    if (key.isEmpty() || key.charAt(0) == SEPARATOR) {
+                        continue;
+                    }
+                    batch.add(key);
+                    if (batch.size() == BATCH_SIZE) {
+                        indexBatch(batch);
+                        batch.clear();
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (cancelled) {
+                return;
+            }
+            indexBatch(batch);
+            ldb.put(BUILT_PREFIX + index.name, "");
+            built.add(index.name);
+        }
+
+        private void indexBatch(List<String> keys) {
+            if (keys.isEmpty()) {
+                return;
+            }
+            // bulkGet hands back the stripes in a fixed order, so this
+            // cannot deadlock with another batch or with a writer
+            Iterable<Lock> locks = keyLocks.bulkGet(keys);
+            for (Lock lock : locks) {
+                lock.lock();
+            }
+            try {
+                ldb.put(writeBatch -> {
+                    for (String key : keys) {
+                        for (String attribute : index.attributes(ldb.get(key))) {
+                            writeBatch.put(indexKey(index, attribute, key), EMPTY);
+                        }
+                    }
+                });
+            } finally {
+                for (Lock lock : locks) {
+                    lock.unlock();
+                }
+            }
+            indexed.addAndGet(keys.size());
+        }
+    }
+
+    /**
+     * Replace the value, or delete it if null, together with the index
+     * entries that change.
+     */
+    private void write(String key, String value) {
+        if (key.isEmpty() || key.charAt(0) == SEPARATOR) {
+            throw new IllegalArgumentException("keys may not be empty or start with \\0");
+        }
+        indexGate.readLock().lock();
+        Lock lock = keyLocks.get(key);
+        lock.lock();
+        try {
+            String old = ldb.get(key);
+            ldb.put(writeBatch -> {
+                for (Index index : indexes.values()) {
+                    Set<String> oldAttributes = index.attributes(old);
+                    Set<String> newAttributes = index.attributes(value);
+                    for (String attribute : oldAttributes) {
+                        if (!newAttributes.contains(attribute)) {
+                            writeBatch.delete(indexKey(index, attribute, key));
+                        }
+                    }
+                    for (String attribute : newAttributes) {
+                        if (!oldAttributes.contains(attribute)) {
+                            writeBatch.put(indexKey(index, attribute, key), EMPTY);
+                        }
+                    }
+                }
+                if (value == null) {
+                    writeBatch.delete(key);
+                } else {
+                    writeBatch.put(key, bytes(value));
+                }
+            });
+        } finally {
+            lock.unlock();
+            indexGate.readLock().unlock();
+        }
+    }
+
+    private void checkBuilt(String indexName) {
+        if (!indexes.containsKey(indexName)) {
+            throw new IllegalArgumentException("no index " + indexName);
+        }
+        if (!built.contains(indexName)) {
+            throw new IllegalStateException("index " + indexName + " is still being backfilled");
+        }
+    }
+
+    private static String indexKey(Index index, String attribute, String key) {
+        return INDEX_PREFIX + index.name + SEPARATOR + attribute + SEPARATOR + key;
+    }
+
+    private static void checkComponent(String what, String component) {
+        if (component.indexOf(SEPARATOR) >= 0) {
+            throw new IllegalArgumentException(what + " may not contain \\0: " + component);
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        Options options = new Options();
+        options.createIfMissing(true);
+        IndexedLDB ldb = new IndexedLDB(new LDB(new DbImpl(options, new File(args[0]))));
+        for (int i = 0; i < 100000; i++) {
+            ldb.put("user" + i, "city=c" + (i % 500) + ";age=" + (18 + i % 60));
+        }
+
+        Backfill backfill = ldb.addIndex(Index.of("city", value -> value.substring(5, value.indexOf(';'))));
+        if (backfill != null) {
+            backfill.run();
+        }
+        long start = System.nanoTime();
+        List<String> keys = ldb.lookup("city", "c42");
+        System.out.println(keys.size() + " keys in c42, looked up in "
+                           + (System.nanoTime() - start) / 1000 + " us");
+        ldb.close();
+    }
+}
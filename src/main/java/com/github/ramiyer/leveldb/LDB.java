@@ -8,6 +8,8 @@ import org.iq80.leveldb.impl.DbImpl;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
@@ -16,10 +18,42 @@ import static org.iq80.leveldb.impl.Iq80DBFactory.bytes;
 
 public class LDB implements KeyValueDataStore<String,String>
 {
+    /**
+     * Last change feed sequence, written in the same batch as every write
+     * the feed publishes. Like the index entries of {@link IndexedLDB} it
+     * starts with {@code \0}, which full scans should skip.
+     */
+    private static final byte[] SEQUENCE_KEY = bytes("\u0000s\u0000changeFeed");
+
     private final DB db;
 
+    private final ChangeFeed changeFeed;
+
     public LDB(DB db) {
         this.db = db;
+        this.changeFeed = null;
+    }
+
+    /**
+     * The feed's sequence numbers continue from the last one stored in the
+     * database, so cursors stay valid across a reopen.
+     *
+     * @param changeFeedCapacity number of committed batches the change
+     *                           feed keeps for consumers to resume from
+     */
+    public LDB(DB db, int changeFeedCapacity) {
+        this.db = db;
+        byte[] lastSequence = db.get(SEQUENCE_KEY);
+        this.changeFeed = new ChangeFeed(changeFeedCapacity,
+                                         lastSequence == null ? 0 : Long.parseLong(asString(lastSequence)));
+    }
+
+    /**
+     * @return the feed of committed writes, or null if this store was
+     * created without one
+     */
+    public ChangeFeed changeFeed() {
+        return changeFeed;
     }
 
     public List<String> findByPrefix(String prefix, int substringStartsAt) {
@@ -40,12 +74,25 @@ public class LDB implements KeyValueDataStore<String,String>
         }
     }
 
+    public DBIterator iterator() {
+        return db.iterator();
+    }
+
     public void put(String key, String value) {
-        db.put(bytes(key), bytes(value));
+        byte[] valueBytes = bytes(value);
+        if (changeFeed == null) {
+            db.put(bytes(key), valueBytes);
+        } else {
+            changeFeed.commit(Collections.singletonList(ChangeFeed.Mutation.put(key, valueBytes)), sequence -> {
+                org.iq80.leveldb.WriteBatch batch = db.createWriteBatch();
+                batch.put(bytes(key), valueBytes);
+                writeSequenced(batch, sequence);
+            });
+        }
     }
 
     public void put(String key, int value) {
-        db.put(bytes(key), bytes(String.valueOf(value)));
+        put(key, String.valueOf(value));
     }
 
     public String get(String key) {
@@ -54,6 +101,18 @@ public class LDB implements KeyValueDataStore<String,String>
         return (bytes == null ? null : asString(bytes));
     }
 
+    public void delete(String key) {
+        if (changeFeed == null) {
+            db.delete(bytes(key));
+        } else {
+            changeFeed.commit(Collections.singletonList(ChangeFeed.Mutation.delete(key)), sequence -> {
+                org.iq80.leveldb.WriteBatch batch = db.createWriteBatch();
+                batch.delete(bytes(key));
+                writeSequenced(batch, sequence);
+            });
+        }
+    }
+
     public void close() throws IOException
     {
         db.close();
@@ -61,9 +120,23 @@ public class LDB implements KeyValueDataStore<String,String>
 
     public void put(AtomicWrite atomicWrite) {
         org.iq80.leveldb.WriteBatch origWriteBatch = db.createWriteBatch();
-        WriteBatch writeBatch = new WriteBatch(origWriteBatch);
+        WriteBatch writeBatch = new WriteBatch(origWriteBatch, changeFeed != null);
         atomicWrite.write(writeBatch);
-        db.write(origWriteBatch);
+        if (changeFeed == null) {
+            db.write(origWriteBatch);
+        } else {
+            changeFeed.commit(writeBatch.mutations, sequence -> writeSequenced(origWriteBatch, sequence));
+        }
+    }
+
+    /**
+     * Write the batch together with its change feed sequence, if it has one.
+     */
+    private void writeSequenced(org.iq80.leveldb.WriteBatch batch, long sequence) {
+        if (sequence > 0) {
+            batch.put(SEQUENCE_KEY, bytes(Long.toString(sequence)));
+        }
+        db.write(batch);
     }
 
     public interface AtomicWrite {
@@ -73,12 +146,28 @@ public class LDB implements KeyValueDataStore<String,String>
     public static class WriteBatch {
         private final org.iq80.leveldb.WriteBatch writeBatch;
 
-        private WriteBatch(org.iq80.leveldb.WriteBatch writeBatch) {
+        /**
+         * Mutations recorded for the change feed, or null if there is none.
+         */
+        private final List<ChangeFeed.Mutation> mutations;
+
+        private WriteBatch(org.iq80.leveldb.WriteBatch writeBatch, boolean recordMutations) {
             this.writeBatch = writeBatch;
+            this.mutations = recordMutations ? new ArrayList<>() : null;
         }
 
         public void put(String key, byte[] value) {
             writeBatch.put(bytes(key), value);
+            if (mutations != null) {
+                mutations.add(ChangeFeed.Mutation.put(key, value));
+            }
+        }
+
+        public void delete(String key) {
+            writeBatch.delete(bytes(key));
+            if (mutations != null) {
+                mutations.add(ChangeFeed.Mutation.delete(key));
+            }
         }
     }
 
@@ -1,20 +1,51 @@
 package com.github.ramiyer.nicety;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Striped;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class DirectedGraph<T>
 {
 
+    /**
+     * Weight of edges added without an explicit weight.
+     */
+    public static final double DEFAULT_WEIGHT = 1.0;
+
+    private static final int LOCK_STRIPES = 1024;
+
+    /**
+     * Removed vertices a single edge write reclaims from the vertex map
+     * on its way out, once no snapshot can see them any more.
+     */
+    private static final int RECLAIM_PER_WRITE = 16;
+
     public static class Edge<T>
     {
 
@@ -50,7 +81,27 @@ public class DirectedGraph<T>
         return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
     }
 
-    private static class Vertex<T>
+    private static <T> Set<T> generateConcurrentSet (int expectedSize)
+    {
+        return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>(expectedSize));
+    }
+
+    /**
+     * What the traversals need from a vertex. A vertex of a plain graph
+     * provides it directly; in a consistent graph it is one version of
+     * the vertex.
+     */
+    private interface Neighbours<T>
+    {
+
+        Set<T> sinks ();
+
+        Set<T> sources ();
+
+        double sinkWeight (Object sink);
+    }
+
+    private static class Vertex<T> implements Neighbours<T>
     {
 
         private final T key;
@@ -59,19 +110,555 @@ public class DirectedGraph<T>
 
         private final Set<T> sinkEdges;
 
+        /**
+         * Newest state of a vertex of a consistent graph, whose sets
+         * above are null. Null until the first write creating it has
+         * installed a state.
+         */
+        private volatile VertexState<T> state;
+
         Vertex (T key)
         {
             this.key = key;
             this.sourceEdges = generateConcurrentSet();
             this.sinkEdges = generateConcurrentSet();
         }
+
+        Vertex (T key, int expectedSources, int expectedSinks)
+        {
+            this.key = key;
+            this.sourceEdges = generateConcurrentSet(expectedSources);
+            this.sinkEdges = generateConcurrentSet(expectedSinks);
+        }
+
+        private Vertex (T key, Set<T> sourceEdges, Set<T> sinkEdges)
+        {
+            this.key = key;
+            this.sourceEdges = sourceEdges;
+            this.sinkEdges = sinkEdges;
+        }
+
+        static <T> Vertex<T> versioned (T key)
+        {
+            return new Vertex<>(key, null, null);
+        }
+
+        /**
+         * Weights of the sink edges that were given one explicitly.
+         * Created on first use so unweighted graphs do not pay for it.
+         */
+        private volatile ConcurrentHashMap<T, Double> sinkWeights;
+
+        @Override
+        public Set<T> sinks ()
+        {
+            return sinkEdges;
+        }
+
+        @Override
+        public Set<T> sources ()
+        {
+            return sourceEdges;
+        }
+
+        @Override
+        public double sinkWeight (Object sink)
+        {
+            ConcurrentHashMap<T, Double> weights = sinkWeights;
+            Double weight = (weights == null) ? null : weights.get(sink);
+            return (weight == null) ? DEFAULT_WEIGHT : weight;
+        }
+
+        void setSinkWeight (T sink, double weight)
+        {
+            ConcurrentHashMap<T, Double> weights = sinkWeights;
+            if (weights == null) {
+                synchronized (this) {
+                    weights = sinkWeights;
+                    if (weights == null) {
+                        weights = new ConcurrentHashMap<>();
+                        sinkWeights = weights;
+                    }
+                }
+            }
+            weights.put(sink, weight);
+        }
+
+        void removeSink (Object sink)
+        {
+            sinkEdges.remove(sink);
+            ConcurrentHashMap<T, Double> weights = sinkWeights;
+            if (weights != null) {
+                weights.remove(sink);
+            }
+        }
+
+        /**
+         * The state of a versioned vertex that was current at the version.
+         *
+         * @return the state, or null if the vertex was not in the graph
+         */
+        VertexState<T> stateAt (long version)
+        {
+            VertexState<T> current = state;
+            while (current != null && current.version > version) {
+                current = current.previous;
+            }
+            return (current == null || !current.isPresent()) ? null : current;
+        }
+    }
+
+    /**
+     * One version of a vertex in a consistent graph. A state is never
+     * modified once installed: a write builds the next state from the
+     * current one and links it back to the state it replaces so that
+     * snapshots can walk back to theirs. The neighbour maps are
+     * persistent, so the next state shares all but the changed path with
+     * this one and a single-edge write costs O(log degree) however many
+     * neighbours the vertex has.
+     */
+    private static final class VertexState<T> implements Neighbours<T>
+    {
+
+        private static final Double DEFAULT = DEFAULT_WEIGHT;
+
+        private final long version;
+
+        /**
+         * Null in the state installed when the vertex was removed.
+         */
+        private final PersistentHashMap<T, Boolean> sources;
+
+        /**
+         * Sinks and the weights of their edges.
+         */
+        private final PersistentHashMap<T, Double> sinks;
+
+        private volatile VertexState<T> previous;
+
+        private VertexState (long version, PersistentHashMap<T, Boolean> sources, PersistentHashMap<T, Double> sinks)
+        {
+            this.version = version;
+            this.sources = sources;
+            this.sinks = sinks;
+        }
+
+        static <T> VertexState<T> empty (long version)
+        {
+            return new VertexState<>(version, PersistentHashMap.empty(), PersistentHashMap.empty());
+        }
+
+        static <T> VertexState<T> removed (long version)
+        {
+            return new VertexState<>(version, null, null);
+        }
+
+        boolean isPresent ()
+        {
+            return sinks != null;
+        }
+
+        @Override
+        public Set<T> sinks ()
+        {
+            return sinks.keySet();
+        }
+
+        @Override
+        public Set<T> sources ()
+        {
+            return sources.keySet();
+        }
+
+        @Override
+        public double sinkWeight (Object sink)
+        {
+            Double weight = sinks.get(sink);
+            return (weight == null) ? DEFAULT_WEIGHT : weight;
+        }
+
+        /**
+         * @param weight
+         *         new weight of the edge, or null to keep its weight
+         */
+        VertexState<T> withSink (long version, T sink, Double weight)
+        {
+            Double current = sinks.get(sink);
+            Double next = (weight != null) ? weight : (current != null) ? current : DEFAULT;
+            return next.equals(current) ? this : new VertexState<>(version, sources, sinks.plus(sink, next));
+        }
+
+        VertexState<T> withoutSink (long version, Object sink)
+        {
+            PersistentHashMap<T, Double> next = sinks.minus(sink);
+            return (next == sinks) ? this : new VertexState<>(version, sources, next);
+        }
+
+        VertexState<T> withSource (long version, T source)
+        {
+            PersistentHashMap<T, Boolean> next = sources.plus(source, Boolean.TRUE);
+            return (next == sources) ? this : new VertexState<>(version, next, sinks);
+        }
+
+        VertexState<T> withoutSource (long version, Object source)
+        {
+            PersistentHashMap<T, Boolean> next = sources.minus(source);
+            return (next == sources) ? this : new VertexState<>(version, next, sinks);
+        }
+
+        @SuppressWarnings("unchecked")
+        VertexState<T> withAll (long version, Adjacency<T> adjacency)
+        {
+            PersistentHashMap<T, Boolean> newSources = sources;
+            for (int i = 0; i < adjacency.sourceCount; i++) {
+                newSources = newSources.plus((T) adjacency.sources[i], Boolean.TRUE);
+            }
+            PersistentHashMap<T, Double> newSinks = sinks;
+            for (int i = 0; i < adjacency.sinkCount; i++) {
+                T sink = (T) adjacency.sinks[i];
+                if (!newSinks.containsKey(sink)) {
+                    newSinks = newSinks.plus(sink, DEFAULT);
+                }
+            }
+            return new VertexState<>(version, newSources, newSinks);
+        }
+
+        VertexState<T> withoutAll (long version, Adjacency<T> adjacency)
+        {
+            PersistentHashMap<T, Boolean> newSources = sources;
+            for (int i = 0; i < adjacency.sourceCount; i++) {
+                newSources = newSources.minus(adjacency.sources[i]);
+            }
+            PersistentHashMap<T, Double> newSinks = sinks;
+            for (int i = 0; i < adjacency.sinkCount; i++) {
+                newSinks = newSinks.minus(adjacency.sinks[i]);
+            }
+            return new VertexState<>(version, newSources, newSinks);
+        }
+
+        /**
+         * Drop the states no snapshot can ask for: everything older than
+         * the newest state at or before the bound.
+         */
+        void truncate (long keepBound)
+        {
+            VertexState<T> current = this;
+            while (current != null && current.version > keepBound) {
+                current = current.previous;
+            }
+            if (current != null && current.previous != null) {
+                current.previous = null;
+            }
+        }
+    }
+
+    /**
+     * Adjacency of a single vertex gathered during a bulk operation.
+     * Neighbours are appended to compact arrays and only copied into
+     * the vertex sets once the final counts are known.
+     */
+    private static class Adjacency<T>
+    {
+
+        private static final Object[] EMPTY = new Object[0];
+
+        private Object[] sources = EMPTY;
+        private int sourceCount;
+        private Object[] sinks = EMPTY;
+        private int sinkCount;
+
+        void addSource (T source)
+        {
+            if (sourceCount == sources.length) {
+                sources = Arrays.copyOf(sources, Math.max(4, sourceCount * 2));
+            }
+            sources[sourceCount++] = source;
+        }
+
+        void addSink (T sink)
+        {
+            if (sinkCount == sinks.length) {
+                sinks = Arrays.copyOf(sinks, Math.max(4, sinkCount * 2));
+            }
+            sinks[sinkCount++] = sink;
+        }
+
+        void addAll (Adjacency<T> other)
+        {
+            sources = append(sources, sourceCount, other.sources, other.sourceCount);
+            sourceCount += other.sourceCount;
+            sinks = append(sinks, sinkCount, other.sinks, other.sinkCount);
+            sinkCount += other.sinkCount;
+        }
+
+        private static Object[] append (Object[] array, int count, Object[] other, int otherCount)
+        {
+            if (count + otherCount > array.length) {
+                array = Arrays.copyOf(array, count + otherCount);
+            }
+            System.arraycopy(other, 0, array, count, otherCount);
+            return array;
+        }
+    }
+
+    /**
+     * Edges grouped by vertex. Built with {@link Stream#collect} so that
+     * parallel streams group into independent partitions that are merged
+     * at the end instead of contending on the shared vertex map.
+     */
+    private static class BulkLoad<T>
+    {
+
+        private final Map<T, Adjacency<T>> adjacency = new HashMap<>();
+
+        void accept (T source, T sink)
+        {
+            adjacency(source).addSink(sink);
+            adjacency(sink).addSource(source);
+        }
+
+        void acceptEdge (Edge<T> edge)
+        {
+            accept(edge.source, edge.sink);
+        }
+
+        void combine (BulkLoad<T> other)
+        {
+            for (Map.Entry<T, Adjacency<T>> entry : other.adjacency.entrySet()) {
+                Adjacency<T> existing = adjacency.putIfAbsent(entry.getKey(), entry.getValue());
+                if (existing != null) {
+                    existing.addAll(entry.getValue());
+                }
+            }
+        }
+
+        private Adjacency<T> adjacency (T key)
+        {
+            Adjacency<T> result = adjacency.get(key);
+            if (result == null) {
+                result = new Adjacency<>();
+                adjacency.put(key, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Version bookkeeping of a consistent graph, shared with its
+     * snapshots.
+     * <p>
+     * Writes take consecutive versions while holding their locks, and may
+     * finish in any order. The stable version is the highest one at or
+     * below which every write has finished. A snapshot reads at the stable
+     * version, so it sees each write entirely or not at all without
+     * waiting for anyone.
+     * <p>
+     * Vertex histories only reach back as far as the oldest snapshot still
+     * in use. Snapshots are forgotten when released, or through a weak
+     * reference once they are garbage collected.
+     */
+    private static final class Versions<T>
+    {
+
+        private final AtomicLong clock = new AtomicLong();
+
+        private final AtomicLong stable = new AtomicLong();
+
+        /**
+         * Finished versions above the stable version.
+         */
+        private final Set<Long> finished = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Number of live snapshots registered at each version.
+         */
+        private final ConcurrentSkipListMap<Long, Integer> snapshots = new ConcurrentSkipListMap<>();
+
+        private final Set<SnapshotReference> references = ConcurrentHashMap.newKeySet();
+
+        private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+        /**
+         * Removed vertices left in the vertex map for older snapshots.
+         */
+        private final Queue<Vertex<T>> removed = new ConcurrentLinkedQueue<>();
+
+        long begin ()
+        {
+            return clock.incrementAndGet();
+        }
+
+        /**
+         * Mark a version finished. Whoever finishes the version right
+         * above the stable one advances it past every finished version.
+         */
+        void finish (long version)
+        {
+            finished.add(version);
+            long current;
+            while (finished.remove((current = stable.get()) + 1)) {
+                stable.set(current + 1);
+            }
+        }
+
+        /**
+         * Oldest version that vertex histories must still be able to show.
+         * The stable version is read before the registry, so a snapshot
+         * missing from the registry reads at this version or later.
+         */
+        long keepBound ()
+        {
+            long current = stable.get();
+            expunge();
+            Map.Entry<Long, Integer> oldest = snapshots.firstEntry();
+            return (oldest == null) ? current : Math.min(current, oldest.getKey());
+        }
+
+        /**
+         * Register a snapshot about to be taken, before its version is
+         * read.
+         *
+         * @return the registered version, at or below the snapshot's
+         */
+        long retain ()
+        {
+            expunge();
+            long version = stable.get();
+            snapshots.merge(version, 1, Integer::sum);
+            return version;
+        }
+
+        SnapshotReference track (Object snapshot, long retained)
+        {
+            SnapshotReference reference = new SnapshotReference(snapshot, retained, collected);
+            references.add(reference);
+            return reference;
+        }
+
+        /**
+         * Forget a snapshot, once only, whether it was released or collected.
+         */
+        void forget (SnapshotReference reference)
+        {
+            if (references.remove(reference)) {
+                snapshots.computeIfPresent(reference.version, (version, count) -> (count == 1) ? null : count - 1);
+            }
+        }
+
+        private void expunge ()
+        {
+            SnapshotReference reference;
+            while ((reference = (SnapshotReference) collected.poll()) != null) {
+                forget(reference);
+            }
+        }
+    }
+
+    private static final class SnapshotReference extends WeakReference<Object>
+    {
+
+        private final long version;
+
+        SnapshotReference (Object snapshot, long version, ReferenceQueue<Object> queue)
+        {
+            super(snapshot, queue);
+            this.version = version;
+        }
+    }
+
+    /**
+     * A write in progress on a consistent graph.
+     */
+    private static final class Write
+    {
+
+        /**
+         * Stripe locks held, or null for a bulk write holding the gate.
+         */
+        private final List<Lock> locks;
+
+        private final long version;
+
+        private final long keepBound;
+
+        Write (List<Lock> locks, long version, long keepBound)
+        {
+            this.locks = locks;
+            this.version = version;
+            this.keepBound = keepBound;
+        }
     }
 
     private final ConcurrentHashMap<T, Vertex<T>> vertexNodes;
 
+    /**
+     * Per-vertex writer locks. Null unless the graph is consistent.
+     */
+    private final Striped<Lock> vertexLocks;
+
+    /**
+     * Single edge writers share the read side, bulk writers take the
+     * write side. Snapshots never touch it.
+     */
+    private final ReadWriteLock writeGate;
+
+    /**
+     * Null unless the graph is consistent or a snapshot of one.
+     */
+    private final Versions<T> versions;
+
+    /**
+     * Version this graph is read at; the newest state for a live graph.
+     */
+    private final long readVersion;
+
+    /**
+     * Registration of a snapshot, null for a live graph.
+     */
+    private final SnapshotReference reference;
+
+    private volatile boolean released;
+
+    private final boolean readOnly;
+
     public DirectedGraph ()
+    {
+        this(false);
+    }
+
+    /**
+     * @param consistent
+     *         if true, each mutation updates both the forward and the
+     *         reverse adjacency of the vertices it touches under striped
+     *         per-vertex locks, and {@link #snapshot()} is available for
+     *         readers that need a consistent view of the whole graph.
+     */
+    public DirectedGraph (boolean consistent)
     {
         this.vertexNodes = new ConcurrentHashMap<>();
+        this.vertexLocks = consistent ? Striped.lock(LOCK_STRIPES) : null;
+        this.writeGate = consistent ? new ReentrantReadWriteLock() : null;
+        this.versions = consistent ? new Versions<>() : null;
+        this.readVersion = Long.MAX_VALUE;
+        this.reference = null;
+        this.readOnly = false;
+    }
+
+    /**
+     * Create a read-only view of a consistent graph at a version.
+     *
+     * @param retained
+     *         version the snapshot was registered at
+     */
+    private DirectedGraph (DirectedGraph<T> graph, long version, long retained)
+    {
+        this.vertexNodes = graph.vertexNodes;
+        this.vertexLocks = null;
+        this.writeGate = null;
+        this.versions = graph.versions;
+        this.readVersion = version;
+        this.reference = versions.track(this, retained);
+        this.readOnly = true;
     }
 
     /**
@@ -85,7 +672,10 @@ public class DirectedGraph<T>
      */
     public Set<T> getVertexNodes ()
     {
-        return vertexNodes.keySet();
+        if (versions == null) {
+            return vertexNodes.keySet();
+        }
+        return Collections.unmodifiableSet(Sets.filter(vertexNodes.keySet(), key -> lookup(key) != null));
     }
 
     /**
@@ -98,9 +688,9 @@ public class DirectedGraph<T>
      */
     public Set<T> getSourceEdges (T key)
     {
-        Vertex<T> vertex = vertexNodes.get(key);
+        Neighbours<T> vertex = lookup(key);
         if (vertex != null) {
-            return vertex.sourceEdges;
+            return vertex.sources();
         }
         else {
             return null;
@@ -117,9 +707,9 @@ public class DirectedGraph<T>
      */
     public Set<T> getSinkEdges (T key)
     {
-        Vertex<T> vertex = vertexNodes.get(key);
+        Neighbours<T> vertex = lookup(key);
         if (vertex != null) {
-            return vertex.sinkEdges;
+            return vertex.sinks();
         }
         else {
             return null;
@@ -130,13 +720,13 @@ public class DirectedGraph<T>
     {
         Set<Edge<T>> retval = new HashSet<>();
         for (T key : keys) {
-            Vertex<T> vertex = vertexNodes.get(key);
+            Neighbours<T> vertex = lookup(key);
             if (vertex != null) {
-                for (T sink : vertex.sinkEdges) {
+                for (T sink : vertex.sinks()) {
                     Edge<T> edge = new Edge<>(key, sink);
                     retval.add(edge);
                 }
-                for (T source : vertex.sourceEdges) {
+                for (T source : vertex.sources()) {
                     Edge<T> edge = new Edge<>(source, key);
                     retval.add(edge);
                 }
@@ -155,7 +745,20 @@ public class DirectedGraph<T>
      */
     public boolean addNode (T key)
     {
-        return (vertexNodes.putIfAbsent(key, new Vertex(key)) == null);
+        Write write = lockVertices(Collections.singletonList(key));
+        try {
+            if (write == null) {
+                return (vertexNodes.putIfAbsent(key, new Vertex<>(key)) == null);
+            }
+            if (lookup(key) != null) {
+                return false;
+            }
+            update(write, key, state -> state);
+            return true;
+        }
+        finally {
+            unlockVertices(write);
+        }
     }
 
     /**
@@ -168,8 +771,60 @@ public class DirectedGraph<T>
      */
     public void addEdge (T source, T sink)
     {
-        addEdgeHelper(source, sink, true);
-        addEdgeHelper(sink, source, false);
+        Write write = lockVertices(Arrays.asList(source, sink));
+        try {
+            addSink(write, source, sink, null);
+            addSource(write, sink, source);
+        }
+        finally {
+            unlockVertices(write);
+        }
+    }
+
+    /**
+     * Add a weighted directed edge to the graph. Adding an edge that is
+     * already present replaces its weight.
+     *
+     * @param source
+     *         edge source
+     * @param sink
+     *         edge sink
+     * @param weight
+     *         non-negative edge weight
+     */
+    public void addEdge (T source, T sink, double weight)
+    {
+        if (!(weight >= 0)) {
+            throw new IllegalArgumentException("edge weight must be non-negative: " + weight);
+        }
+        Write write = lockVertices(Arrays.asList(source, sink));
+        try {
+            addSink(write, source, sink, weight);
+            addSource(write, sink, source);
+        }
+        finally {
+            unlockVertices(write);
+        }
+    }
+
+    /**
+     * Retrieve the weight of a directed edge.
+     *
+     * @param source
+     *         edge source
+     * @param sink
+     *         edge sink
+     *
+     * @return the edge weight, {@link #DEFAULT_WEIGHT} if it was added
+     * without one, or null if the edge is not in the graph
+     */
+    public Double getEdgeWeight (T source, T sink)
+    {
+        Neighbours<T> vertex = lookup(source);
+        if (vertex == null || !vertex.sinks().contains(sink)) {
+            return null;
+        }
+        return vertex.sinkWeight(sink);
     }
 
     /**
@@ -182,138 +837,476 @@ public class DirectedGraph<T>
      */
     public void removeEdge (T source, T sink)
     {
-        Vertex<T> vertex = vertexNodes.get(source);
+        Write write = lockVertices(Arrays.asList(source, sink));
+        try {
+            removeSink(write, source, sink);
+            removeSource(write, sink, source);
+        }
+        finally {
+            unlockVertices(write);
+        }
+    }
 
-        if (vertex != null) {
-            vertex.sinkEdges.remove(sink);
+    /**
+     * Remove a node from the graph and its associated edges.
+     *
+     * @param key
+     *
+     * @return true if the graph previously contained the node
+     */
+    public boolean removeNode (T key)
+    {
+        if (vertexLocks == null) {
+            checkWritable();
+            return removeNodeHelper(null, key);
+        }
+
+        /*
+         * Lock the node and its current neighbours. Holding the node's
+         * lock stops its edges from changing, so if no neighbour was
+         * added before the locks were taken the removal is complete.
+         */
+        while (true) {
+            Neighbours<T> vertex = lookup(key);
+            if (vertex == null) {
+                return false;
+            }
+            Set<Object> neighbourhood = new HashSet<>();
+            neighbourhood.add(key);
+            neighbourhood.addAll(vertex.sinks());
+            neighbourhood.addAll(vertex.sources());
+
+            Write write = lockVertices(neighbourhood);
+            try {
+                Neighbours<T> current = lookup(key);
+                if (current == null) {
+                    return false;
+                }
+                if (neighbourhood.containsAll(current.sinks())
+                    && neighbourhood.containsAll(current.sources())) {
+                    return removeNodeHelper(write, key);
+                }
+            }
+            finally {
+                unlockVertices(write);
+            }
         }
+    }
 
-        vertex = vertexNodes.get(sink);
+    /**
+     * Whether this is a live consistent graph, and so can take
+     * {@link #snapshot() snapshots}. Snapshots themselves are read-only
+     * and return false.
+     */
+    public boolean isConsistent ()
+    {
+        return vertexLocks != null;
+    }
 
-        if (vertex != null) {
-            vertex.sourceEdges.remove(source);
+    /**
+     * Number of vertices in the vertex map, counting removed ones still
+     * kept for snapshots. Lets tests see when those are reclaimed.
+     */
+    int storedVertexCount ()
+    {
+        return vertexNodes.size();
+    }
+
+    /**
+     * Take a consistent, read-only view of the graph. Only available when
+     * the graph was created with {@code consistent = true}.
+     * <p>
+     * Every vertex of a consistent graph keeps the versions of its
+     * adjacency that live snapshots may still ask for, so taking a
+     * snapshot costs nothing up front and never holds writers off. Reads
+     * on the snapshot see the graph as of the last moment at which no
+     * write was half done. Vertices written while a snapshot is alive
+     * keep their older versions until it is released, so readers should
+     * {@link #release()} a snapshot when done; one that is not released
+     * holds versions until it is garbage collected.
+     *
+     * @return an immutable graph reflecting every completed mutation
+     */
+    public DirectedGraph<T> snapshot ()
+    {
+        if (vertexLocks == null) {
+            throw new IllegalStateException("snapshots require a consistent graph");
+        }
+
+        long retained = versions.retain();
+        return new DirectedGraph<>(this, versions.stable.get(), retained);
+    }
+
+    /**
+     * Let the graph discard the versions this snapshot was holding. The
+     * snapshot must not be read afterwards. Does nothing on a graph that
+     * is not a snapshot, or one already released.
+     */
+    public void release ()
+    {
+        if (reference != null) {
+            released = true;
+            versions.forget(reference);
+        }
+    }
+
+    private boolean removeNodeHelper (Write write, T key)
+    {
+        Neighbours<T> vertex = detachVertex(write, key);
+
+        if (vertex == null) {
+            return false;
+        }
+
+        for (T sink : vertex.sinks()) {
+            removeSource(write, sink, key);
+        }
+
+        for (T source : vertex.sources()) {
+            removeSink(write, source, key);
+        }
+
+        return true;
+    }
+
+    /**
+     * Add a batch of directed edges to the graph. Edges are grouped by
+     * vertex first, so each vertex is looked up once and its adjacency
+     * sets are created at their final size. A parallel stream groups
+     * its partitions concurrently.
+     *
+     * @param edges
+     *         edges to add
+     */
+    public void addEdges (Stream<Edge<T>> edges)
+    {
+        BulkLoad<T> load = edges.collect(BulkLoad::new, BulkLoad::acceptEdge, BulkLoad::combine);
+        Write write = lockAllVertices();
+        try {
+            applyBulkLoad(write, load);
+        }
+        finally {
+            unlockAllVertices(write);
+        }
+    }
+
+    /**
+     * Add a batch of directed edges to the graph, where edge {@code i}
+     * runs from {@code sources[i]} to {@code sinks[i]}.
+     *
+     * @param sources
+     *         edge sources
+     * @param sinks
+     *         edge sinks
+     */
+    public void addEdges (T[] sources, T[] sinks)
+    {
+        if (sources.length != sinks.length) {
+            throw new IllegalArgumentException("sources and sinks differ in length: "
+                                               + sources.length + " != " + sinks.length);
+        }
+        BulkLoad<T> load = IntStream.range(0, sources.length).parallel()
+                .collect(BulkLoad::new, (batch, i) -> batch.accept(sources[i], sinks[i]),
+                         BulkLoad::combine);
+        Write write = lockAllVertices();
+        try {
+            applyBulkLoad(write, load);
+        }
+        finally {
+            unlockAllVertices(write);
+        }
+    }
+
+    /**
+     * Remove a batch of directed edges from the graph.
+     *
+     * @param edges
+     *         edges to remove
+     */
+    public void removeEdges (Collection<Edge<T>> edges)
+    {
+        BulkLoad<T> load = edges.parallelStream()
+                .collect(BulkLoad::new, BulkLoad::acceptEdge, BulkLoad::combine);
+        Write write = lockAllVertices();
+        try {
+            applyBulkRemoval(write, load);
+        }
+        finally {
+            unlockAllVertices(write);
+        }
+    }
+
+    /**
+     * Remove a batch of nodes from the graph and their associated edges.
+     *
+     * @param keys
+     *         nodes to remove
+     *
+     * @return the number of nodes the graph previously contained
+     */
+    public int removeNodes (Collection<T> keys)
+    {
+        int removed = 0;
+        BulkLoad<T> detach = new BulkLoad<>();
+
+        Write write = lockAllVertices();
+        try {
+            for (T key : keys) {
+                Neighbours<T> vertex = detachVertex(write, key);
+                if (vertex == null) {
+                    continue;
+                }
+                removed++;
+                for (T sink : vertex.sinks()) {
+                    detach.accept(key, sink);
+                }
+                for (T source : vertex.sources()) {
+                    detach.accept(source, key);
+                }
+            }
+
+            applyBulkRemoval(write, detach);
+        }
+        finally {
+            unlockAllVertices(write);
+        }
+        return removed;
+    }
+
+    public Set<T> sinksClosure (T key)
+    {
+        Set<T> retval = new HashSet<>();
+        Set<T> workSet = new HashSet<>();
+        workSet.add(key);
+
+        while (!workSet.isEmpty()) {
+            T current = workSet.iterator().next();
+            workSet.remove(current);
+            Neighbours<T> vertex = lookup(current);
+            if (vertex == null) {
+                continue;
+            }
+            retval.add(current);
+            for (T sink : vertex.sinks()) {
+                if (!retval.contains(sink)) {
+                    workSet.add(sink);
+                }
+            }
+        }
+
+        return retval;
+    }
+
+    public Set<T> sourcesClosure (T key)
+    {
+        Set<T> retval = new HashSet<>();
+        Set<T> workSet = new HashSet<>();
+        workSet.add(key);
+
+        while (!workSet.isEmpty()) {
+            T current = workSet.iterator().next();
+            workSet.remove(current);
+            Neighbours<T> vertex = lookup(current);
+            if (vertex == null) {
+                continue;
+            }
+            retval.add(current);
+            for (T source : vertex.sources()) {
+                if (!retval.contains(source)) {
+                    workSet.add(source);
+                }
+            }
+        }
+
+        return retval;
+    }
+
+    public Set<T> transitiveClosure (T key)
+    {
+        Set<T> retval = new HashSet<>();
+        Set<T> workSet = new HashSet<>();
+        workSet.add(key);
+
+        while (!workSet.isEmpty()) {
+            T current = workSet.iterator().next();
+            workSet.remove(current);
+            Neighbours<T> vertex = lookup(current);
+            if (vertex == null) {
+                continue;
+            }
+            retval.add(current);
+            for (T source : vertex.sources()) {
+                if (!retval.contains(source)) {
+                    workSet.add(source);
+                }
+            }
+            for (T sink : vertex.sinks()) {
+                if (!retval.contains(sink)) {
+                    workSet.add(sink);
+                }
+            }
         }
+
+        return retval;
     }
 
     /**
-     * Remove a node from the graph and its associated edges.
+     * returns the nodes that are forward reachable from
+     * the key in at most maxHops edges, including the key.
      *
      * @param key
+     * @param maxHops
      *
-     * @return true if the graph previously contained the node
+     * @return a set of nodes
      */
-    public boolean removeNode (T key)
+    public Set<T> sinksWithinHops (T key, int maxHops)
     {
-        Vertex<T> vertex = vertexNodes.remove(key);
-
-        if (vertex == null) {
-            return false;
-        }
-
-        for (T sink : vertex.sinkEdges) {
-            Vertex<T> sinkVertex = vertexNodes.get(sink);
-            if (sinkVertex != null) {
-                sinkVertex.sourceEdges.remove(key);
-            }
-        }
-
-        for (T source : vertex.sourceEdges) {
-            Vertex<T> sourceVertex = vertexNodes.get(source);
-            if (sourceVertex != null) {
-                sourceVertex.sinkEdges.remove(key);
-            }
-        }
-
-        return true;
+        return withinHops(key, maxHops, true);
     }
 
-    public Set<T> sinksClosure (T key)
+    /**
+     * returns the nodes that are backward reachable from
+     * the key in at most maxHops edges, including the key.
+     *
+     * @param key
+     * @param maxHops
+     *
+     * @return a set of nodes
+     */
+    public Set<T> sourcesWithinHops (T key, int maxHops)
     {
-        Set<T> retval = new HashSet<>();
-        Set<Vertex<T>> workSet = new HashSet<>();
-        Vertex<T> root = vertexNodes.get(key);
+        return withinHops(key, maxHops, false);
+    }
 
-        if (root != null) {
-            workSet.add(root);
+    /**
+     * returns the forward reachable nodes whose weighted
+     * distance from the key is at most maxDistance.
+     *
+     * @param key
+     * @param maxDistance
+     *
+     * @return a map from node to its distance from the key
+     */
+    @SuppressWarnings("unchecked")
+    public Map<T, Double> sinksWithinDistance (T key, double maxDistance)
+    {
+        Map<T, Double> retval = new HashMap<>();
+        if (lookup(key) == null) {
+            return retval;
         }
 
-        while (!workSet.isEmpty()) {
-            Vertex<T> vertex = workSet.iterator().next();
-            retval.add(vertex.key);
-            workSet.remove(vertex);
-            for (T sink : vertex.sinkEdges) {
-                if (!retval.contains(sink)) {
-                    Vertex<T> sinkVertex = vertexNodes.get(sink);
-                    if (sinkVertex != null) {
-                        workSet.add(sinkVertex);
-                    }
+        SearchScratch scratch = SearchScratch.get();
+        try {
+            int root = scratch.slot(key);
+            scratch.distances[root] = 0;
+            scratch.heap.push(0, root);
+            while (!scratch.heap.isEmpty()) {
+                double distance = scratch.heap.peekPriority();
+                int slot = scratch.heap.pop();
+                if (distance > maxDistance) {
+                    break;
                 }
+                if (distance > scratch.distances[slot]) {
+                    continue;
+                }
+                T current = (T) scratch.keys[slot];
+                retval.put(current, distance);
+                relaxSinks(scratch, current, slot, distance);
             }
+            return retval;
+        }
+        finally {
+            scratch.reset();
         }
-
-        return retval;
     }
 
-    public Set<T> sourcesClosure (T key)
+    /**
+     * Dijkstra's algorithm over the edge weights. The search stops as
+     * soon as the sink is settled.
+     *
+     * @param source
+     * @param sink
+     *
+     * @return the cheapest path from source to sink inclusive,
+     * or null if the sink is not reachable
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> shortestPath (T source, T sink)
     {
-        Set<T> retval = new HashSet<>();
-        Set<Vertex<T>> workSet = new HashSet<>();
-        Vertex<T> root = vertexNodes.get(key);
-
-        if (root != null) {
-            workSet.add(root);
+        if (lookup(source) == null || lookup(sink) == null) {
+            return null;
         }
 
-        while (!workSet.isEmpty()) {
-            Vertex<T> vertex = workSet.iterator().next();
-            retval.add(vertex.key);
-            workSet.remove(vertex);
-            for (T source : vertex.sourceEdges) {
-                if (!retval.contains(source)) {
-                    Vertex<T> sourceVertex = vertexNodes.get(source);
-                    if (sourceVertex != null) {
-                        workSet.add(sourceVertex);
-                    }
+        SearchScratch scratch = SearchScratch.get();
+        try {
+            int root = scratch.slot(source);
+            scratch.distances[root] = 0;
+            scratch.parents[root] = SearchScratch.ROOT;
+            scratch.heap.push(0, root);
+            while (!scratch.heap.isEmpty()) {
+                double distance = scratch.heap.peekPriority();
+                int slot = scratch.heap.pop();
+                if (distance > scratch.distances[slot]) {
+                    continue;
+                }
+                T current = (T) scratch.keys[slot];
+                if (current.equals(sink)) {
+                    return scratch.path(slot);
                 }
+                relaxSinks(scratch, current, slot, distance);
             }
+            return null;
+        }
+        finally {
+            scratch.reset();
         }
-
-        return retval;
     }
 
-    public Set<T> transitiveClosure (T key)
+    /**
+     * Bidirectional breadth-first search, expanding whichever of the
+     * forward and backward frontiers is smaller. Edge weights are ignored.
+     *
+     * @param source
+     * @param sink
+     * @param maxHops
+     *
+     * @return a path from source to sink inclusive with the fewest edges,
+     * or null if there is none of at most maxHops edges
+     */
+    public List<T> shortestHopPath (T source, T sink, int maxHops)
     {
-        Set<T> retval = new HashSet<>();
-        Set<Vertex<T>> workSet = new HashSet<>();
-        Vertex<T> root = vertexNodes.get(key);
-
-        if (root != null) {
-            workSet.add(root);
+        if (lookup(source) == null || lookup(sink) == null) {
+            return null;
+        }
+        if (source.equals(sink)) {
+            return Collections.singletonList(source);
         }
 
-        while (!workSet.isEmpty()) {
-            Vertex<T> vertex = workSet.iterator().next();
-            retval.add(vertex.key);
-            workSet.remove(vertex);
-            for (T source : vertex.sourceEdges) {
-                if (!retval.contains(source)) {
-                    Vertex<T> sourceVertex = vertexNodes.get(source);
-                    if (sourceVertex != null) {
-                        workSet.add(sourceVertex);
-                    }
+        SearchScratch scratch = SearchScratch.get();
+        try {
+            int forwardRoot = scratch.slot(source);
+            scratch.parents[forwardRoot] = SearchScratch.ROOT;
+            scratch.frontier.add(forwardRoot);
+            int reverseRoot = scratch.slot(sink);
+            scratch.reverseParents[reverseRoot] = SearchScratch.ROOT;
+            scratch.reverseFrontier.add(reverseRoot);
+
+            for (int hops = 0; hops < maxHops; hops++) {
+                boolean forward = scratch.frontier.size <= scratch.reverseFrontier.size;
+                SearchScratch.IntList frontier = forward ? scratch.frontier : scratch.reverseFrontier;
+                if (frontier.size == 0) {
+                    return null;
                 }
-            }
-            for (T sink : vertex.sinkEdges) {
-                if (!retval.contains(sink)) {
-                    Vertex<T> sinkVertex = vertexNodes.get(sink);
-                    if (sinkVertex != null) {
-                        workSet.add(sinkVertex);
-                    }
+                int meeting = expandLevel(scratch, frontier, forward);
+                if (meeting >= 0) {
+                    return scratch.bidirectionalPath(meeting);
                 }
             }
+            return null;
+        }
+        finally {
+            scratch.reset();
         }
-
-        return retval;
     }
 
     /**
@@ -332,14 +1325,14 @@ public class DirectedGraph<T>
         private int index;
         private final Map<T, Integer> indices;
         private final Map<T, Integer> lowlinks;
-        private final Deque<Vertex<T>> stack;
+        private final Deque<T> stack;
         private final boolean forward;
 
         /**
          * Set membership for the stack object.
          * For constant-time stack membership test.
          */
-        private final Set<Vertex<T>> inStack;
+        private final Set<T> inStack;
 
         private final Set<T> keys;
         private final Set<Set<T>> components;
@@ -363,62 +1356,87 @@ public class DirectedGraph<T>
         Set<Set<T>> generateComponents ()
         {
             for (T key : keys) {
-                Vertex<T> vertex = vertexNodes.get(key);
+                Neighbours<T> vertex = lookup(key);
                 if (vertex != null && !indices.containsKey(key)) {
-                    strongConnect(vertex);
+                    strongConnect(key, vertex);
                 }
             }
             return components;
         }
 
-        private void strongConnect (Vertex<T> vertex)
+        /**
+         * Depth first search with an explicit stack of frames rather than
+         * recursion, so that long paths do not overflow the thread stack.
+         */
+        private void strongConnect (T root, Neighbours<T> rootVertex)
+        {
+            Deque<Frame> callStack = new ArrayDeque<>();
+            callStack.push(visit(root, rootVertex));
+
+            while (!callStack.isEmpty()) {
+                Frame frame = callStack.peek();
+                if (frame.neighbours.hasNext()) {
+                    T next = frame.neighbours.next();
+                    Neighbours<T> nextVertex = lookup(next);
+                    if (nextVertex != null) {
+                        if (!indices.containsKey(next)) {
+                            callStack.push(visit(next, nextVertex));
+                        }
+                        else if (inStack.contains(next)) {
+                            lowlinks.put(frame.key, Math.min(lowlinks.get(frame.key),
+                                                             indices.get(next)));
+                        }
+                    }
+                    continue;
+                }
+
+                callStack.pop();
+                int index = indices.get(frame.key);
+                int lowlink = lowlinks.get(frame.key);
+
+                if (index == lowlink) {
+                    Set<T> newComponent = new HashSet<>();
+                    T next;
+                    do {
+                        next = stack.pop();
+                        inStack.remove(next);
+                        newComponent.add(next);
+                    }
+                    while (!next.equals(frame.key));
+                    components.add(newComponent);
+                }
+
+                Frame parent = callStack.peek();
+                if (parent != null) {
+                    lowlinks.put(parent.key, Math.min(lowlinks.get(parent.key), lowlink));
+                }
+            }
+        }
+
+        private Frame visit (T key, Neighbours<T> vertex)
         {
-            T key = vertex.key;
             indices.put(key, index);
             lowlinks.put(key, index);
             index++;
-            stack.push(vertex);
-            inStack.add(vertex);
-
-            Iterator<T> iterator;
+            stack.push(key);
+            inStack.add(key);
+            return new Frame(key, forward ? vertex.sinks().iterator() : vertex.sources().iterator());
+        }
 
-            if (forward) {
-                iterator = vertex.sinkEdges.iterator();
-            }
-            else {
-                iterator = vertex.sourceEdges.iterator();
-            }
+        /**
+         * A vertex being searched and the neighbours it has left to visit.
+         */
+        private final class Frame
+        {
 
-            while (iterator.hasNext()) {
-                T next = iterator.next();
-                Vertex<T> nextVertex = vertexNodes.get(next);
-                if (nextVertex != null) {
-                    if (!indices.containsKey(next)) {
-                        strongConnect(nextVertex);
-                        lowlinks.put(key, Math.min(lowlinks.get(key),
-                                                   lowlinks.get(next)));
-                    }
-                    else if (inStack.contains(nextVertex)) {
-                        lowlinks.put(key, Math.min(lowlinks.get(key),
-                                                   indices.get(next)));
-                    }
-                }
-            }
+            private final T key;
 
-            int index = indices.get(key);
-            int lowlink = lowlinks.get(key);
+            private final Iterator<T> neighbours;
 
-            if (index == lowlink) {
-                Set<T> newComponent = new HashSet<>();
-                T next;
-                do {
-                    Vertex<T> nextVertex = stack.pop();
-                    inStack.remove(nextVertex);
-                    next = nextVertex.key;
-                    newComponent.add(next);
-                }
-                while (!next.equals(key));
-                components.add(newComponent);
+            Frame (T key, Iterator<T> neighbours)
+            {
+                this.key = key;
+                this.neighbours = neighbours;
             }
         }
     }
@@ -486,8 +1504,8 @@ public class DirectedGraph<T>
             Set<T> component = iterator.next();
             if (component.size() == 1) {
                 T single = component.iterator().next();
-                Vertex<T> vertex = vertexNodes.get(single);
-                if (vertex == null || !vertex.sinkEdges.contains(single)) {
+                Neighbours<T> vertex = lookup(single);
+                if (vertex == null || !vertex.sinks().contains(single)) {
                     iterator.remove();
                 }
             }
@@ -495,20 +1513,382 @@ public class DirectedGraph<T>
         return strongComponents;
     }
 
-    private void addEdgeHelper (T nodeGet, T nodePut, boolean sinkEdges)
+    /**
+     * The vertex as this graph sees it: the vertex itself in a plain
+     * graph, otherwise its state at the read version.
+     *
+     * @return the neighbours, or null if the node is not in the graph
+     */
+    private Neighbours<T> lookup (Object key)
     {
-        Vertex<T> vertex = vertexNodes.get(nodeGet);
-        if (vertex == null) {
-            Vertex<T> newVertex = new Vertex(nodeGet);
-            Vertex<T> prevVertex = vertexNodes.putIfAbsent(nodeGet, newVertex);
-            vertex = (prevVertex == null) ? newVertex : prevVertex;
+        Vertex<T> vertex = vertexNodes.get(key);
+        if (vertex == null || versions == null) {
+            return vertex;
+        }
+        if (released) {
+            throw new IllegalStateException("snapshot was released");
+        }
+        return vertex.stateAt(readVersion);
+    }
+
+    /**
+     * @param weight
+     *         new weight of the edge, or null to keep its weight
+     */
+    private void addSink (Write write, T source, T sink, Double weight)
+    {
+        if (write == null) {
+            Vertex<T> vertex = vertexFor(source);
+            if (weight != null) {
+                vertex.setSinkWeight(sink, weight);
+            }
+            vertex.sinkEdges.add(sink);
+        }
+        else {
+            update(write, source, state -> state.withSink(write.version, sink, weight));
+        }
+    }
+
+    private void addSource (Write write, T sink, T source)
+    {
+        if (write == null) {
+            vertexFor(sink).sourceEdges.add(source);
+        }
+        else {
+            update(write, sink, state -> state.withSource(write.version, source));
+        }
+    }
+
+    private void removeSink (Write write, T source, T sink)
+    {
+        if (write == null) {
+            Vertex<T> vertex = vertexNodes.get(source);
+            if (vertex != null) {
+                vertex.removeSink(sink);
+            }
+        }
+        else {
+            updateIfPresent(write, source, state -> state.withoutSink(write.version, sink));
         }
-        if (sinkEdges) {
-            vertex.sinkEdges.add(nodePut);
+    }
+
+    private void removeSource (Write write, T sink, T source)
+    {
+        if (write == null) {
+            Vertex<T> vertex = vertexNodes.get(sink);
+            if (vertex != null) {
+                vertex.sourceEdges.remove(source);
+            }
         }
         else {
-            vertex.sourceEdges.add(nodePut);
+            updateIfPresent(write, sink, state -> state.withoutSource(write.version, source));
+        }
+    }
+
+    /**
+     * Take a vertex out of the graph, leaving its neighbours alone.
+     *
+     * @return the adjacency the vertex had, or null if it was not in the
+     * graph
+     */
+    private Neighbours<T> detachVertex (Write write, T key)
+    {
+        if (write == null) {
+            return vertexNodes.remove(key);
+        }
+        Vertex<T> vertex = vertexNodes.get(key);
+        VertexState<T> head = (vertex == null) ? null : vertex.state;
+        if (head == null || !head.isPresent()) {
+            return null;
+        }
+        install(write, vertex, VertexState.removed(write.version));
+        // the vertex stays in the map until no snapshot can see it
+        versions.removed.add(vertex);
+        return head;
+    }
+
+    /**
+     * Give a vertex its next state as part of a consistent write, adding
+     * the vertex if it is not in the graph. The change is applied to the
+     * current state, and leaves the vertex as it is by returning it.
+     */
+    private void update (Write write, T key, UnaryOperator<VertexState<T>> change)
+    {
+        Vertex<T> vertex = vertexFor(key);
+        VertexState<T> head = vertex.state;
+        VertexState<T> current = (head == null || !head.isPresent()) ? VertexState.empty(write.version) : head;
+        VertexState<T> next = change.apply(current);
+        if (next != head) {
+            install(write, vertex, next);
+        }
+    }
+
+    private void updateIfPresent (Write write, T key, UnaryOperator<VertexState<T>> change)
+    {
+        Vertex<T> vertex = vertexNodes.get(key);
+        VertexState<T> head = (vertex == null) ? null : vertex.state;
+        if (head == null || !head.isPresent()) {
+            return;
+        }
+        VertexState<T> next = change.apply(head);
+        if (next != head) {
+            install(write, vertex, next);
+        }
+    }
+
+    /**
+     * Make the state the newest one of the vertex. A second change to the
+     * same vertex in one write replaces the first, which no snapshot can
+     * have seen.
+     */
+    private void install (Write write, Vertex<T> vertex, VertexState<T> next)
+    {
+        VertexState<T> head = vertex.state;
+        next.previous = (head != null && head.version == write.version) ? head.previous : head;
+        vertex.state = next;
+        next.truncate(write.keepBound);
+    }
+
+    private Set<T> withinHops (T key, int maxHops, boolean forward)
+    {
+        Set<T> retval = new HashSet<>();
+        if (lookup(key) == null) {
+            return retval;
+        }
+
+        SearchScratch scratch = SearchScratch.get();
+        try {
+            retval.add(key);
+            scratch.frontier.add(scratch.slot(key));
+            for (int hops = 0; hops < maxHops && scratch.frontier.size > 0; hops++) {
+                for (int i = 0; i < scratch.frontier.size; i++) {
+                    Neighbours<T> vertex = lookup(scratch.keys[scratch.frontier.values[i]]);
+                    if (vertex == null) {
+                        continue;
+                    }
+                    for (T next : forward ? vertex.sinks() : vertex.sources()) {
+                        if (retval.add(next)) {
+                            scratch.next.add(scratch.slot(next));
+                        }
+                    }
+                }
+                scratch.frontier.swap(scratch.next);
+                scratch.next.size = 0;
+            }
+            return retval;
+        }
+        finally {
+            scratch.reset();
+        }
+    }
+
+    private void relaxSinks (SearchScratch scratch, T key, int slot, double distance)
+    {
+        Neighbours<T> vertex = lookup(key);
+        if (vertex == null) {
+            return;
+        }
+        for (T sink : vertex.sinks()) {
+            double candidate = distance + vertex.sinkWeight(sink);
+            int sinkSlot = scratch.slot(sink);
+            if (candidate < scratch.distances[sinkSlot]) {
+                scratch.distances[sinkSlot] = candidate;
+                scratch.parents[sinkSlot] = slot;
+                scratch.heap.push(candidate, sinkSlot);
+            }
+        }
+    }
+
+    /**
+     * Expand one level of a bidirectional search.
+     *
+     * @return the slot where the two searches met, or -1
+     */
+    private int expandLevel (SearchScratch scratch, SearchScratch.IntList frontier, boolean forward)
+    {
+        for (int i = 0; i < frontier.size; i++) {
+            int slot = frontier.values[i];
+            Neighbours<T> vertex = lookup(scratch.keys[slot]);
+            if (vertex == null) {
+                continue;
+            }
+            for (T next : forward ? vertex.sinks() : vertex.sources()) {
+                int nextSlot = scratch.slot(next);
+                int[] parents = forward ? scratch.parents : scratch.reverseParents;
+                int[] otherParents = forward ? scratch.reverseParents : scratch.parents;
+                if (parents[nextSlot] != SearchScratch.UNSEEN) {
+                    continue;
+                }
+                parents[nextSlot] = slot;
+                if (otherParents[nextSlot] != SearchScratch.UNSEEN) {
+                    return nextSlot;
+                }
+                scratch.next.add(nextSlot);
+            }
+        }
+        frontier.swap(scratch.next);
+        scratch.next.size = 0;
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void applyBulkLoad (Write write, BulkLoad<T> load)
+    {
+        load.adjacency.entrySet().parallelStream().forEach(entry -> {
+            T key = entry.getKey();
+            Adjacency<T> adjacency = entry.getValue();
+            if (write != null) {
+                update(write, key, state -> state.withAll(write.version, adjacency));
+                return;
+            }
+            Vertex<T> vertex = vertexNodes.get(key);
+            if (vertex == null) {
+                Vertex<T> newVertex = new Vertex<>(key, adjacency.sourceCount, adjacency.sinkCount);
+                Vertex<T> prevVertex = vertexNodes.putIfAbsent(key, newVertex);
+                vertex = (prevVertex == null) ? newVertex : prevVertex;
+            }
+            for (int i = 0; i < adjacency.sinkCount; i++) {
+                vertex.sinkEdges.add((T) adjacency.sinks[i]);
+            }
+            for (int i = 0; i < adjacency.sourceCount; i++) {
+                vertex.sourceEdges.add((T) adjacency.sources[i]);
+            }
+        });
+    }
+
+    private void applyBulkRemoval (Write write, BulkLoad<T> load)
+    {
+        load.adjacency.entrySet().parallelStream().forEach(entry -> {
+            Adjacency<T> adjacency = entry.getValue();
+            if (write != null) {
+                updateIfPresent(write, entry.getKey(), state -> state.withoutAll(write.version, adjacency));
+                return;
+            }
+            Vertex<T> vertex = vertexNodes.get(entry.getKey());
+            if (vertex == null) {
+                return;
+            }
+            for (int i = 0; i < adjacency.sinkCount; i++) {
+                vertex.removeSink(adjacency.sinks[i]);
+            }
+            for (int i = 0; i < adjacency.sourceCount; i++) {
+                vertex.sourceEdges.remove(adjacency.sources[i]);
+            }
+        });
+    }
+
+    /**
+     * Take the writer locks for a set of vertices and a version for the
+     * write. In a graph that is not consistent this only checks that the
+     * graph may be written.
+     *
+     * @return the write to pass to {@link #unlockVertices}, or null if the
+     * graph is not consistent
+     */
+    private Write lockVertices (Iterable<?> keys)
+    {
+        checkWritable();
+        if (vertexLocks == null) {
+            return null;
+        }
+        writeGate.readLock().lock();
+        // bulkGet orders the stripes, so writers cannot deadlock
+        List<Lock> locks = ImmutableList.copyOf(vertexLocks.bulkGet(keys));
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+        return new Write(locks, versions.begin(), versions.keepBound());
+    }
+
+    private void unlockVertices (Write write)
+    {
+        if (write == null) {
+            return;
+        }
+        for (Lock lock : write.locks) {
+            lock.unlock();
+        }
+        versions.finish(write.version);
+        writeGate.readLock().unlock();
+        reclaimRemovedVertices(RECLAIM_PER_WRITE);
+    }
+
+    private Write lockAllVertices ()
+    {
+        checkWritable();
+        if (vertexLocks == null) {
+            return null;
+        }
+        writeGate.writeLock().lock();
+        return new Write(null, versions.begin(), versions.keepBound());
+    }
+
+    private void unlockAllVertices (Write write)
+    {
+        if (write == null) {
+            return;
+        }
+        versions.finish(write.version);
+        writeGate.writeLock().unlock();
+        reclaimRemovedVertices(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Drop removed vertices from the vertex map once no snapshot can see
+     * them. A vertex is only dropped under its stripe lock, so a write
+     * adding it back either sees it still in the map or creates it anew.
+     */
+    private void reclaimRemovedVertices (int limit)
+    {
+        Queue<Vertex<T>> removed = versions.removed;
+        if (removed.isEmpty()) {
+            return;
+        }
+        long keepBound = versions.keepBound();
+        for (int i = 0; i < limit; i++) {
+            Vertex<T> vertex = removed.peek();
+            if (vertex == null) {
+                return;
+            }
+            VertexState<T> head = vertex.state;
+            if (!head.isPresent() && head.version > keepBound) {
+                return;
+            }
+            if (!removed.remove(vertex) || head.isPresent()) {
+                continue;
+            }
+            writeGate.readLock().lock();
+            Lock lock = vertexLocks.get(vertex.key);
+            lock.lock();
+            try {
+                VertexState<T> current = vertex.state;
+                if (!current.isPresent() && current.version <= keepBound) {
+                    vertexNodes.remove(vertex.key, vertex);
+                }
+            }
+            finally {
+                lock.unlock();
+                writeGate.readLock().unlock();
+            }
+        }
+    }
+
+    private void checkWritable ()
+    {
+        if (readOnly) {
+            throw new UnsupportedOperationException("graph snapshots are read-only");
+        }
+    }
+
+    private Vertex<T> vertexFor (T key)
+    {
+        Vertex<T> vertex = vertexNodes.get(key);
+        if (vertex == null) {
+            Vertex<T> newVertex = (versions == null) ? new Vertex<>(key) : Vertex.versioned(key);
+            Vertex<T> prevVertex = vertexNodes.putIfAbsent(key, newVertex);
+            vertex = (prevVertex == null) ? newVertex : prevVertex;
         }
+        return vertex;
     }
 
     /**
@@ -517,19 +1897,19 @@ public class DirectedGraph<T>
 
     boolean testEdge (T source, T sink)
     {
-        Vertex<T> vertex = vertexNodes.get(source);
+        Neighbours<T> vertex = lookup(source);
         if (vertex == null) {
             return false;
         }
-        return vertex.sinkEdges.contains(sink);
+        return vertex.sinks().contains(sink);
     }
 
     boolean testEdgeReverse (T source, T sink)
     {
-        Vertex<T> vertex = vertexNodes.get(sink);
+        Neighbours<T> vertex = lookup(sink);
         if (vertex == null) {
             return false;
         }
-        return vertex.sourceEdges.contains(source);
+        return vertex.sources().contains(source);
     }
-}
\ No newline at end of file
+}
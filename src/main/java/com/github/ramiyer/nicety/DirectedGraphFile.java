@@ -0,0 +1,332 @@
+package com.github.ramiyer.nicety;
+
+import com.google.common.primitives.UnsignedBytes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary on-disk format for a {@link DirectedGraph}.
+ * <p>
+ * The file is a fixed size header followed by six sections:
+ * <ol>
+ * <li>key offsets: {@code int[V + 1]} into the key bytes</li>
+ * <li>key bytes: encoded vertex keys, sorted as unsigned bytes</li>
+ * <li>sink offsets: {@code int[V + 1]} into the sink targets</li>
+ * <li>sink targets: {@code int[E]} vertex ids, sorted within each row</li>
+ * <li>source offsets: {@code int[V + 1]} into the source targets</li>
+ * <li>source targets: {@code int[E]} vertex ids, sorted within each row</li>
+ * </ol>
+ * A vertex id is the position of its key in the sorted dictionary, so
+ * lookups by key are a binary search. The header records the offset,
+ * length and CRC32 of every section. All values are big-endian.
+ *
+ * @see MappedDirectedGraph
+ */
+public final class DirectedGraphFile
+{
+
+    /**
+     * Converts vertex keys to and from their on-disk bytes.
+     */
+    public interface Codec<T>
+    {
+
+        byte[] encode (T key);
+
+        T decode (byte[] bytes);
+    }
+
+    public static final Codec<String> STRINGS = new Codec<String>()
+    {
+
+        @Override
+        public byte[] encode (String key)
+        {
+            return key.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode (byte[] bytes)
+        {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    static final int MAGIC = 0x44474631;
+
+    static final int VERSION = 1;
+
+    static final int KEY_OFFSETS = 0;
+    static final int KEY_BYTES = 1;
+    static final int SINK_OFFSETS = 2;
+    static final int SINK_TARGETS = 3;
+    static final int SOURCE_OFFSETS = 4;
+    static final int SOURCE_TARGETS = 5;
+    static final int SECTION_COUNT = 6;
+
+    /**
+     * magic, version, vertex count, edge count, then
+     * (offset, length, crc) for every section.
+     */
+    static final int HEADER_SIZE = 16 + SECTION_COUNT * 24;
+
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    private DirectedGraphFile ()
+    {
+    }
+
+    /**
+     * Write a graph to a file. The file is written next to its final
+     * location and moved into place, so processes that have the previous
+     * version mapped keep a valid view of it.
+     * <p>
+     * A consistent graph is written from a snapshot, so writers may keep
+     * going, and a snapshot is written as it is. Any other graph is read vertex by vertex, and the caller must
+     * stop writers until this returns, or the sink and source sections
+     * may disagree.
+     *
+     * @param graph
+     *         graph to write
+     * @param codec
+     *         encoder for vertex keys
+     * @param path
+     *         destination file
+     */
+    public static <T> void write (DirectedGraph<T> graph, Codec<T> codec, Path path) throws IOException
+    {
+        if (!graph.isConsistent()) {
+            writeStable(graph, codec, path);
+            return;
+        }
+        DirectedGraph<T> snapshot = graph.snapshot();
+        try {
+            writeStable(snapshot, codec, path);
+        }
+        finally {
+            snapshot.release();
+        }
+    }
+
+    private static <T> void writeStable (DirectedGraph<T> graph, Codec<T> codec, Path path) throws IOException
+    {
+        List<T> keys = new ArrayList<>(graph.getVertexNodes());
+        int vertexCount = keys.size();
+
+        byte[][] encoded = new byte[vertexCount][];
+        Integer[] order = new Integer[vertexCount];
+        for (int i = 0; i < vertexCount; i++) {
+            encoded[i] = codec.encode(keys.get(i));
+            order[i] = i;
+        }
+        Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+        Arrays.sort(order, (a, b) -> comparator.compare(encoded[a], encoded[b]));
+
+        Map<T, Integer> ids = new HashMap<>(vertexCount * 2);
+        int[] keyOffsets = new int[vertexCount + 1];
+        long keyBytes = 0;
+        for (int id = 0; id < vertexCount; id++) {
+            byte[] bytes = encoded[order[id]];
+            if (id > 0 && comparator.compare(encoded[order[id - 1]], bytes) == 0) {
+                throw new IllegalArgumentException("two vertices share the encoding of "
+                                                   + keys.get(order[id]));
+            }
+            ids.put(keys.get(order[id]), id);
+            keyOffsets[id] = (int) keyBytes;
+            keyBytes += bytes.length;
+            if (keyBytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("vertex keys exceed 2GB");
+            }
+        }
+        keyOffsets[vertexCount] = (int) keyBytes;
+
+        int[][] sinkRows = new int[vertexCount][];
+        int[][] sourceRows = new int[vertexCount][];
+        for (int id = 0; id < vertexCount; id++) {
+            T key = keys.get(order[id]);
+            sinkRows[id] = toIds(graph.getSinkEdges(key), ids);
+            sourceRows[id] = toIds(graph.getSourceEdges(key), ids);
+        }
+        int[] sinkOffsets = rowOffsets(sinkRows);
+        int[] sourceOffsets = rowOffsets(sourceRows);
+
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(),
+                                         path.getFileName().toString(), ".tmp");
+        try {
+            long[] sectionOffsets = new long[SECTION_COUNT];
+            long[] sectionLengths = new long[SECTION_COUNT];
+            long[] sectionChecksums = new long[SECTION_COUNT];
+
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                SectionWriter writer = new SectionWriter(channel, HEADER_SIZE);
+
+                writer.begin();
+                writer.putInts(keyOffsets);
+                writer.end(KEY_OFFSETS, sectionOffsets, sectionLengths, sectionChecksums);
+
+                writer.begin();
+                for (int id = 0; id < vertexCount; id++) {
+                    writer.putBytes(encoded[order[id]]);
+                }
+                writer.end(KEY_BYTES, sectionOffsets, sectionLengths, sectionChecksums);
+
+                writer.begin();
+                writer.putInts(sinkOffsets);
+                writer.end(SINK_OFFSETS, sectionOffsets, sectionLengths, sectionChecksums);
+
+                writer.begin();
+                for (int[] row : sinkRows) {
+                    writer.putInts(row);
+                }
+                writer.end(SINK_TARGETS, sectionOffsets, sectionLengths, sectionChecksums);
+
+                writer.begin();
+                writer.putInts(sourceOffsets);
+                writer.end(SOURCE_OFFSETS, sectionOffsets, sectionLengths, sectionChecksums);
+
+                writer.begin();
+                for (int[] row : sourceRows) {
+                    writer.putInts(row);
+                }
+                writer.end(SOURCE_TARGETS, sectionOffsets, sectionLengths, sectionChecksums);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(vertexCount);
+                header.putInt(sinkOffsets[vertexCount]);
+                for (int section = 0; section < SECTION_COUNT; section++) {
+                    header.putLong(sectionOffsets[section]);
+                    header.putLong(sectionLengths[section]);
+                    header.putLong(sectionChecksums[section]);
+                }
+                header.flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                channel.force(true);
+            }
+
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static <T> int[] toIds (Set<T> neighbours, Map<T, Integer> ids)
+    {
+        if (neighbours == null) {
+            return new int[0];
+        }
+        int[] row = new int[neighbours.size()];
+        int count = 0;
+        for (T neighbour : neighbours) {
+            Integer id = ids.get(neighbour);
+            if (id != null && count < row.length) {
+                row[count++] = id;
+            }
+        }
+        row = (count == row.length) ? row : Arrays.copyOf(row, count);
+        Arrays.sort(row);
+        return row;
+    }
+
+    private static int[] rowOffsets (int[][] rows)
+    {
+        int[] offsets = new int[rows.length + 1];
+        long total = 0;
+        for (int i = 0; i < rows.length; i++) {
+            offsets[i] = (int) total;
+            total += rows[i].length;
+            if (total > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("edge count exceeds " + Integer.MAX_VALUE);
+            }
+        }
+        offsets[rows.length] = (int) total;
+        return offsets;
+    }
+
+    /**
+     * Sequential writer that tracks the offset, length and checksum
+     * of the section currently being written.
+     */
+    private static class SectionWriter
+    {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private long position;
+        private long sectionStart;
+
+        SectionWriter (FileChannel channel, long position)
+        {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        void begin ()
+        {
+            crc.reset();
+            sectionStart = position;
+        }
+
+        void putInts (int[] values) throws IOException
+        {
+            for (int value : values) {
+                if (buffer.remaining() < 4) {
+                    flush();
+                }
+                buffer.putInt(value);
+            }
+        }
+
+        void putBytes (byte[] bytes) throws IOException
+        {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        void end (int section, long[] offsets, long[] lengths, long[] checksums) throws IOException
+        {
+            flush();
+            offsets[section] = sectionStart;
+            lengths[section] = position - sectionStart;
+            checksums[section] = crc.getValue();
+        }
+
+        private void flush () throws IOException
+        {
+            buffer.flip();
+            crc.update(buffer.array(), 0, buffer.limit());
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+}
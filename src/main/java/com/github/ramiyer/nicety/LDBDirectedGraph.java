@@ -0,0 +1,528 @@
+package com.github.ramiyer.nicety;
+
+import com.github.ramiyer.leveldb.LDB;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Striped;
+import org.iq80.leveldb.DBIterator;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+
+import static org.iq80.leveldb.impl.Iq80DBFactory.asString;
+import static org.iq80.leveldb.impl.Iq80DBFactory.bytes;
+
+/**
+ * A directed graph of string vertices stored in an {@link LDB}, for
+ * graphs that do not fit on the heap.
+ * <p>
+ * Every vertex and both directions of every edge are separate keys:
+ * <pre>
+ *   v\0vertex        node marker
+ *   o\0source\0sink  sink edge of source
+ *   i\0sink\0source  source edge of sink
+ * </pre>
+ * so the sinks or sources of a vertex are a single prefix scan. Both
+ * directions of an edge are written in one {@link LDB.WriteBatch}, so
+ * they are always consistent on disk. The adjacency lists of recently
+ * used vertices are kept in a bounded {@link LRUCache}.
+ * <p>
+ * Closures and strongly connected components read adjacency one vertex
+ * at a time, streamed from the store, and take the roots of the search
+ * from a store iterator, so only the visited set and the search stack
+ * are held in memory. They use cached lists they find but do not cache
+ * what they read, since a one-off walk over hubs would evict the hot
+ * entries. Vertex names may not contain {@code \0}.
+ */
+public class LDBDirectedGraph
+{
+
+    private static final String SEPARATOR = "\u0000";
+
+    private static final String VERTEX_PREFIX = "v" + SEPARATOR;
+
+    private static final String SINK_PREFIX = "o" + SEPARATOR;
+
+    private static final String SOURCE_PREFIX = "i" + SEPARATOR;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final int LOCK_STRIPES = 1024;
+
+    private final LDB ldb;
+
+    private final LRUCache<String, Set<String>> sinkCache;
+
+    private final LRUCache<String, Set<String>> sourceCache;
+
+    /**
+     * Serializes writers of a vertex with cache fills for that vertex,
+     * so a stale adjacency list is never cached after an update.
+     */
+    private final Striped<Lock> vertexLocks = Striped.lock(LOCK_STRIPES);
+
+    /**
+     * @param ldb
+     *         store holding the graph
+     * @param cachedVertices
+     *         number of vertices whose sinks, and separately sources,
+     *         are cached
+     */
+    public LDBDirectedGraph (LDB ldb, int cachedVertices)
+    {
+        this.ldb = ldb;
+        this.sinkCache = new LRUCache<>(cachedVertices);
+        this.sourceCache = new LRUCache<>(cachedVertices);
+    }
+
+    /**
+     * Retrieve the set of vertexNodes in the graph. This scans every
+     * node marker in the store and holds them all; use
+     * {@link #forEachVertex} to walk them instead.
+     *
+     * @return set of vertexNodes
+     */
+    public Set<String> getVertexNodes ()
+    {
+        Set<String> vertices = new HashSet<>();
+        forEachVertex(vertices::add);
+        return vertices;
+    }
+
+    /**
+     * Visit every vertex in key order, streaming the node markers from
+     * the store.
+     */
+    public void forEachVertex (Consumer<? super String> consumer)
+    {
+        forEachKey(VERTEX_PREFIX, consumer);
+    }
+
+    /**
+     * Number of adjacency lists in the sink and source caches together.
+     */
+    int cachedAdjacencyLists ()
+    {
+        return sinkCache.size() + sourceCache.size();
+    }
+
+    public boolean containsNode (String key)
+    {
+        return ldb.get(VERTEX_PREFIX + key) != null;
+    }
+
+    /**
+     * Retrieve the source edges for a particular node in the graph.
+     *
+     * @param key
+     *         name of a graph node
+     *
+     * @return either a set of edges or null
+     */
+    public Set<String> getSourceEdges (String key)
+    {
+        Set<String> sources = adjacency(key, sourceCache, SOURCE_PREFIX);
+        return (sources.isEmpty() && !containsNode(key)) ? null : sources;
+    }
+
+    /**
+     * Retrieve the sink edges for a particular node in the graph.
+     *
+     * @param key
+     *         name of a graph node
+     *
+     * @return either a set of edges or null
+     */
+    public Set<String> getSinkEdges (String key)
+    {
+        Set<String> sinks = adjacency(key, sinkCache, SINK_PREFIX);
+        return (sinks.isEmpty() && !containsNode(key)) ? null : sinks;
+    }
+
+    /**
+     * Add a new node to the graph.
+     *
+     * @param key
+     *
+     * @return true if the graph did not previously contain the node.
+     */
+    public boolean addNode (String key)
+    {
+        checkKey(key);
+        List<Lock> locks = lock(Collections.singletonList(key));
+        try {
+            if (containsNode(key)) {
+                return false;
+            }
+            ldb.put(VERTEX_PREFIX + key, "");
+            return true;
+        }
+        finally {
+            unlock(locks);
+        }
+    }
+
+    /**
+     * Add a directed edge to the graph.
+     *
+     * @param source
+     *         edge source
+     * @param sink
+     *         edge sink
+     */
+    public void addEdge (String source, String sink)
+    {
+        checkKey(source);
+        checkKey(sink);
+        List<Lock> locks = lock(Arrays.asList(source, sink));
+        try {
+            ldb.put(batch -> {
+                batch.put(VERTEX_PREFIX + source, EMPTY);
+                batch.put(VERTEX_PREFIX + sink, EMPTY);
+                batch.put(edgeKey(SINK_PREFIX, source, sink), EMPTY);
+                batch.put(edgeKey(SOURCE_PREFIX, sink, source), EMPTY);
+            });
+            sinkCache.remove(source);
+            sourceCache.remove(sink);
+        }
+        finally {
+            unlock(locks);
+        }
+    }
+
+    /**
+     * Remove a directed edge from the graph.
+     *
+     * @param source
+     *         edge source
+     * @param sink
+     *         edge sink
+     */
+    public void removeEdge (String source, String sink)
+    {
+        List<Lock> locks = lock(Arrays.asList(source, sink));
+        try {
+            ldb.put(batch -> {
+                batch.delete(edgeKey(SINK_PREFIX, source, sink));
+                batch.delete(edgeKey(SOURCE_PREFIX, sink, source));
+            });
+            sinkCache.remove(source);
+            sourceCache.remove(sink);
+        }
+        finally {
+            unlock(locks);
+        }
+    }
+
+    /**
+     * Remove a node from the graph and its associated edges.
+     *
+     * @param key
+     *
+     * @return true if the graph previously contained the node
+     */
+    public boolean removeNode (String key)
+    {
+        while (true) {
+            if (!containsNode(key)) {
+                return false;
+            }
+            Set<String> neighbourhood = new HashSet<>();
+            neighbourhood.add(key);
+            neighbourhood.addAll(scan(SINK_PREFIX + key + SEPARATOR));
+            neighbourhood.addAll(scan(SOURCE_PREFIX + key + SEPARATOR));
+
+            List<Lock> locks = lock(neighbourhood);
+            try {
+                // with the node locked its edges cannot change any more
+                List<String> sinks = scan(SINK_PREFIX + key + SEPARATOR);
+                List<String> sources = scan(SOURCE_PREFIX + key + SEPARATOR);
+                if (!neighbourhood.containsAll(sinks) || !neighbourhood.containsAll(sources)) {
+                    continue;
+                }
+                if (!containsNode(key)) {
+                    return false;
+                }
+                ldb.put(batch -> {
+                    batch.delete(VERTEX_PREFIX + key);
+                    for (String sink : sinks) {
+                        batch.delete(edgeKey(SINK_PREFIX, key, sink));
+                        batch.delete(edgeKey(SOURCE_PREFIX, sink, key));
+                    }
+                    for (String source : sources) {
+                        batch.delete(edgeKey(SOURCE_PREFIX, key, source));
+                        batch.delete(edgeKey(SINK_PREFIX, source, key));
+                    }
+                });
+                sinkCache.remove(key);
+                sourceCache.remove(key);
+                for (String sink : sinks) {
+                    sourceCache.remove(sink);
+                }
+                for (String source : sources) {
+                    sinkCache.remove(source);
+                }
+                return true;
+            }
+            finally {
+                unlock(locks);
+            }
+        }
+    }
+
+    public Set<String> sinksClosure (String key)
+    {
+        return closure(key, true, false);
+    }
+
+    public Set<String> sourcesClosure (String key)
+    {
+        return closure(key, false, true);
+    }
+
+    public Set<String> transitiveClosure (String key)
+    {
+        return closure(key, true, true);
+    }
+
+    /**
+     * returns all the cycles in the graph,
+     *
+     * @return a set of cycles in the graph
+     */
+    public Set<Set<String>> allCycles ()
+    {
+        Set<Set<String>> strongComponents = stronglyConnectedComponents();
+        Iterator<Set<String>> iterator = strongComponents.iterator();
+        while (iterator.hasNext()) {
+            Set<String> component = iterator.next();
+            if (component.size() == 1) {
+                String single = component.iterator().next();
+                if (ldb.get(edgeKey(SINK_PREFIX, single, single)) == null) {
+                    iterator.remove();
+                }
+            }
+        }
+        return strongComponents;
+    }
+
+    /**
+     * Tarjan's algorithm with an explicit stack, so that long paths in
+     * large graphs do not overflow the thread stack.
+     */
+    public Set<Set<String>> stronglyConnectedComponents ()
+    {
+        Set<Set<String>> components = new HashSet<>();
+        Map<String, Integer> indices = new HashMap<>();
+        Map<String, Integer> lowlinks = new HashMap<>();
+        Deque<String> stack = new ArrayDeque<>();
+        Set<String> inStack = new HashSet<>();
+        Deque<Frame> callStack = new ArrayDeque<>();
+        int index = 0;
+
+        try (DBIterator roots = ldb.iterator()) {
+            for (roots.seek(bytes(VERTEX_PREFIX)); roots.hasNext(); roots.next()) {
+                String marker = asString(roots.peekNext().getKey());
+                if (!marker.startsWith(VERTEX_PREFIX)) {
+                    break;
+                }
+                String root = marker.substring(VERTEX_PREFIX.length());
+                if (indices.containsKey(root)) {
+                    continue;
+                }
+                callStack.push(new Frame(root, neighbours(root, sinkCache, SINK_PREFIX).iterator()));
+                indices.put(root, index);
+                lowlinks.put(root, index);
+                index++;
+                stack.push(root);
+                inStack.add(root);
+
+                while (!callStack.isEmpty()) {
+                    Frame frame = callStack.peek();
+                    if (frame.sinks.hasNext()) {
+                        String next = frame.sinks.next();
+                        if (!indices.containsKey(next)) {
+                            indices.put(next, index);
+                            lowlinks.put(next, index);
+                            index++;
+                            stack.push(next);
+                            inStack.add(next);
+                            callStack.push(new Frame(next, neighbours(next, sinkCache, SINK_PREFIX).iterator()));
+                        }
+                        else if (inStack.contains(next)) {
+                            lowlinks.put(frame.key, Math.min(lowlinks.get(frame.key), indices.get(next)));
+                        }
+                        continue;
+                    }
+
+                    callStack.pop();
+                    if (lowlinks.get(frame.key).equals(indices.get(frame.key))) {
+                        Set<String> newComponent = new HashSet<>();
+                        String next;
+                        do {
+                            next = stack.pop();
+                            inStack.remove(next);
+                            newComponent.add(next);
+                        }
+                        while (!next.equals(frame.key));
+                        components.add(newComponent);
+                    }
+                    Frame parent = callStack.peek();
+                    if (parent != null) {
+                        lowlinks.put(parent.key, Math.min(lowlinks.get(parent.key), lowlinks.get(frame.key)));
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return components;
+    }
+
+    private static class Frame
+    {
+
+        private final String key;
+
+        private final Iterator<String> sinks;
+
+        Frame (String key, Iterator<String> sinks)
+        {
+            this.key = key;
+            this.sinks = sinks;
+        }
+    }
+
+    private Set<String> closure (String key, boolean sinks, boolean sources)
+    {
+        Set<String> retval = new HashSet<>();
+        if (!containsNode(key)) {
+            return retval;
+        }
+        Deque<String> workSet = new ArrayDeque<>();
+        retval.add(key);
+        workSet.add(key);
+
+        while (!workSet.isEmpty()) {
+            String vertex = workSet.poll();
+            if (sinks) {
+                for (String sink : neighbours(vertex, sinkCache, SINK_PREFIX)) {
+                    if (retval.add(sink)) {
+                        workSet.add(sink);
+                    }
+                }
+            }
+            if (sources) {
+                for (String source : neighbours(vertex, sourceCache, SOURCE_PREFIX)) {
+                    if (retval.add(source)) {
+                        workSet.add(source);
+                    }
+                }
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Adjacency of one vertex for a point read, loaded into the cache if
+     * it is not there.
+     */
+    private Set<String> adjacency (String key, LRUCache<String, Set<String>> cache, String prefix)
+    {
+        Set<String> cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        Lock lock = vertexLocks.get(key);
+        lock.lock();
+        try {
+            ImmutableSet.Builder<String> loaded = ImmutableSet.builder();
+            forEachKey(prefix + key + SEPARATOR, loaded::add);
+            Set<String> built = loaded.build();
+            cache.add(key, built);
+            return built;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adjacency of one vertex for a traversal: the cached list if there
+     * is one, otherwise read from the store and not cached.
+     */
+    private Collection<String> neighbours (String key, LRUCache<String, Set<String>> cache, String prefix)
+    {
+        Set<String> cached = cache.get(key);
+        return (cached != null) ? cached : scan(prefix + key + SEPARATOR);
+    }
+
+    private List<String> scan (String prefix)
+    {
+        List<String> keys = new ArrayList<>();
+        forEachKey(prefix, keys::add);
+        return keys;
+    }
+
+    /**
+     * Stream the keys under the prefix in key order, with the prefix cut
+     * off.
+     */
+    private void forEachKey (String prefix, Consumer<? super String> consumer)
+    {
+        try (DBIterator iterator = ldb.iterator()) {
+            for (iterator.seek(bytes(prefix)); iterator.hasNext(); iterator.next()) {
+                String key = asString(iterator.peekNext().getKey());
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+                consumer.accept(key.substring(prefix.length()));
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private List<Lock> lock (Iterable<?> keys)
+    {
+        List<Lock> locks = ImmutableList.copyOf(vertexLocks.bulkGet(keys));
+        for (Lock lock : locks) {
+            lock.lock();
+        }
+        return locks;
+    }
+
+    private static void unlock (List<Lock> locks)
+    {
+        for (Lock lock : locks) {
+            lock.unlock();
+        }
+    }
+
+    private static String edgeKey (String prefix, String vertex, String neighbour)
+    {
+        return prefix + vertex + SEPARATOR + neighbour;
+    }
+
+    private static void checkKey (String key)
+    {
+        if (key.contains(SEPARATOR)) {
+            throw new IllegalArgumentException("vertex names may not contain \\0: " + key);
+        }
+    }
+}
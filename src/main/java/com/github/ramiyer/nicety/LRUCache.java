@@ -1,57 +1,64 @@
 package com.github.ramiyer.nicety;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Bounded map that evicts the least recently used key. Entries live in an
+ * access-ordered {@link LinkedHashMap}, so add, get and remove are O(1).
+ * A get moves the key to the back of the order, which makes it a write,
+ * so every operation takes the same lock.
+ */
 public class LRUCache<K,V>
 {
 
-    private final int capacity;
-    private ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-    private Lock readLock = readWriteLock.readLock();
-    private Lock writeLock = readWriteLock.writeLock();
-    private ConcurrentLinkedQueue<K> concurrentLinkedQueue = new ConcurrentLinkedQueue<K>();
-    private ConcurrentHashMap<K,V> concurrentHashMap = new ConcurrentHashMap<K, V>();
+    private final Lock lock = new ReentrantLock();
+    private final LinkedHashMap<K,V> map;
 
     public LRUCache(int capacity ) {
-        this.capacity = capacity;
+        this.map = new LinkedHashMap<K,V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K,V> eldest) {
+                return size() > capacity;
+            }
+        };
     }
 
     public void add(K key, V value) {
-        writeLock.lock();
+        lock.lock();
         try {
-            if(concurrentHashMap.contains(key)){
-                concurrentLinkedQueue.remove(key);
-            }
-
-            while (concurrentLinkedQueue.size() >= capacity) {
-                K oldestKey = concurrentLinkedQueue.poll();
-                if (null != oldestKey) {
-                    concurrentHashMap.remove(oldestKey);
-                }
-            }
-            concurrentLinkedQueue.add(key);
-            concurrentHashMap.put(key,value);
+            map.put(key, value);
         } finally {
-            writeLock.unlock();
+            lock.unlock();
         }
     }
 
     public V get(K key) {
-        readLock.lock();
+        lock.lock();
         try {
-            V value = null;
-            if (concurrentHashMap.contains(key)) {
-                concurrentLinkedQueue.remove(key);
-                value = concurrentHashMap.get(key);
-                concurrentLinkedQueue.add(key);
-            }
-            return value;
+            return map.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void remove(K key) {
+        lock.lock();
+        try {
+            map.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return map.size();
         } finally {
-            readLock.unlock();
+            lock.unlock();
         }
     }
 }
@@ -0,0 +1,374 @@
+package com.github.ramiyer.nicety;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import static com.github.ramiyer.nicety.DirectedGraphFile.HEADER_SIZE;
+import static com.github.ramiyer.nicety.DirectedGraphFile.KEY_BYTES;
+import static com.github.ramiyer.nicety.DirectedGraphFile.KEY_OFFSETS;
+import static com.github.ramiyer.nicety.DirectedGraphFile.MAGIC;
+import static com.github.ramiyer.nicety.DirectedGraphFile.SECTION_COUNT;
+import static com.github.ramiyer.nicety.DirectedGraphFile.SINK_OFFSETS;
+import static com.github.ramiyer.nicety.DirectedGraphFile.SINK_TARGETS;
+import static com.github.ramiyer.nicety.DirectedGraphFile.SOURCE_OFFSETS;
+import static com.github.ramiyer.nicety.DirectedGraphFile.SOURCE_TARGETS;
+import static com.github.ramiyer.nicety.DirectedGraphFile.VERSION;
+
+/**
+ * Read-only view of a graph written by {@link DirectedGraphFile}.
+ * <p>
+ * Queries are served directly from memory-mapped sections of the file;
+ * nothing is deserialized up front, and processes mapping the same file
+ * share its pages through the OS cache. Only keys that are returned to
+ * the caller are decoded. Instances are safe for concurrent readers.
+ */
+public class MappedDirectedGraph<T>
+{
+
+    private final DirectedGraphFile.Codec<T> codec;
+
+    private final int vertexCount;
+
+    private final int edgeCount;
+
+    private final IntBuffer keyOffsets;
+
+    private final ByteBuffer keyBytes;
+
+    private final IntBuffer sinkOffsets;
+
+    private final IntBuffer sinkTargets;
+
+    private final IntBuffer sourceOffsets;
+
+    private final IntBuffer sourceTargets;
+
+    private MappedDirectedGraph (DirectedGraphFile.Codec<T> codec, int vertexCount, int edgeCount,
+                                 ByteBuffer[] sections)
+    {
+        this.codec = codec;
+        this.vertexCount = vertexCount;
+        this.edgeCount = edgeCount;
+        this.keyOffsets = sections[KEY_OFFSETS].asIntBuffer();
+        this.keyBytes = sections[KEY_BYTES];
+        this.sinkOffsets = sections[SINK_OFFSETS].asIntBuffer();
+        this.sinkTargets = sections[SINK_TARGETS].asIntBuffer();
+        this.sourceOffsets = sections[SOURCE_OFFSETS].asIntBuffer();
+        this.sourceTargets = sections[SOURCE_TARGETS].asIntBuffer();
+    }
+
+    /**
+     * Map a graph file without verifying its checksums.
+     *
+     * @param path
+     *         file written by {@link DirectedGraphFile#write}
+     * @param codec
+     *         decoder for vertex keys
+     */
+    public static <T> MappedDirectedGraph<T> open (Path path, DirectedGraphFile.Codec<T> codec)
+            throws IOException
+    {
+        return open(path, codec, false);
+    }
+
+    /**
+     * Map a graph file. Verifying checksums reads every page of the file,
+     * so it is best left to the process that wrote or first loads it.
+     *
+     * @param path
+     *         file written by {@link DirectedGraphFile#write}
+     * @param codec
+     *         decoder for vertex keys
+     * @param verifyChecksums
+     *         whether to check the CRC32 of every section
+     */
+    public static <T> MappedDirectedGraph<T> open (Path path, DirectedGraphFile.Codec<T> codec,
+                                                   boolean verifyChecksums) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(path + " is too short to be a graph file");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(path + " is not a graph file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(path + " has unsupported version " + version);
+            }
+            int vertexCount = header.getInt();
+            int edgeCount = header.getInt();
+            if (vertexCount < 0 || edgeCount < 0) {
+                throw new IOException(path + " has a corrupt header: " + vertexCount + " vertices, "
+                                      + edgeCount + " edges");
+            }
+
+            ByteBuffer[] sections = new ByteBuffer[SECTION_COUNT];
+            for (int section = 0; section < SECTION_COUNT; section++) {
+                long offset = header.getLong();
+                long length = header.getLong();
+                long checksum = header.getLong();
+                if (offset < HEADER_SIZE || length > Integer.MAX_VALUE || offset + length > channel.size()) {
+                    throw new IOException(path + " has a corrupt header for section " + section);
+                }
+                sections[section] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                if (verifyChecksums) {
+                    CRC32 crc = new CRC32();
+                    crc.update(sections[section].duplicate());
+                    if (crc.getValue() != checksum) {
+                        throw new IOException(path + " failed checksum for section " + section);
+                    }
+                }
+            }
+            checkStructure(path, vertexCount, edgeCount, sections);
+            return new MappedDirectedGraph<>(codec, vertexCount, edgeCount, sections);
+        }
+    }
+
+    /**
+     * Check that the sections are as long as the header's counts say and
+     * that the offset tables span exactly the data they index, so that a
+     * truncated or mismatched file fails here rather than in a query.
+     * Costs a few reads, unlike the checksums.
+     */
+    private static void checkStructure (Path path, int vertexCount, int edgeCount, ByteBuffer[] sections)
+            throws IOException
+    {
+        long offsetsLength = 4L * (vertexCount + 1);
+        long targetsLength = 4L * edgeCount;
+        checkLength(path, sections, KEY_OFFSETS, offsetsLength);
+        checkLength(path, sections, SINK_OFFSETS, offsetsLength);
+        checkLength(path, sections, SOURCE_OFFSETS, offsetsLength);
+        checkLength(path, sections, SINK_TARGETS, targetsLength);
+        checkLength(path, sections, SOURCE_TARGETS, targetsLength);
+        checkSpan(path, sections, KEY_OFFSETS, vertexCount, sections[KEY_BYTES].capacity());
+        checkSpan(path, sections, SINK_OFFSETS, vertexCount, edgeCount);
+        checkSpan(path, sections, SOURCE_OFFSETS, vertexCount, edgeCount);
+    }
+
+    private static void checkLength (Path path, ByteBuffer[] sections, int section, long expected)
+            throws IOException
+    {
+        if (sections[section].capacity() != expected) {
+            throw new IOException(path + " has " + sections[section].capacity() + " bytes in section "
+                                  + section + ", expected " + expected);
+        }
+    }
+
+    private static void checkSpan (Path path, ByteBuffer[] sections, int section, int vertexCount, int end)
+            throws IOException
+    {
+        int first = sections[section].getInt(0);
+        int last = sections[section].getInt(4 * vertexCount);
+        if (first != 0 || last != end) {
+            throw new IOException(path + " has offsets " + first + ".." + last + " in section " + section
+                                  + ", expected 0.." + end);
+        }
+    }
+
+    public int getVertexCount ()
+    {
+        return vertexCount;
+    }
+
+    public int getEdgeCount ()
+    {
+        return edgeCount;
+    }
+
+    public boolean containsNode (T key)
+    {
+        return idOf(key) >= 0;
+    }
+
+    /**
+     * Retrieve the sink edges for a particular node in the graph.
+     *
+     * @param key
+     *         name of a graph node
+     *
+     * @return either a set of edges or null
+     */
+    public Set<T> getSinkEdges (T key)
+    {
+        int id = idOf(key);
+        return (id < 0) ? null : decodeRow(id, sinkOffsets, sinkTargets);
+    }
+
+    /**
+     * Retrieve the source edges for a particular node in the graph.
+     *
+     * @param key
+     *         name of a graph node
+     *
+     * @return either a set of edges or null
+     */
+    public Set<T> getSourceEdges (T key)
+    {
+        int id = idOf(key);
+        return (id < 0) ? null : decodeRow(id, sourceOffsets, sourceTargets);
+    }
+
+    public boolean hasEdge (T source, T sink)
+    {
+        int sourceId = idOf(source);
+        if (sourceId < 0) {
+            return false;
+        }
+        int sinkId = idOf(sink);
+        if (sinkId < 0) {
+            return false;
+        }
+        int low = sinkOffsets.get(sourceId);
+        int high = sinkOffsets.get(sourceId + 1) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int target = sinkTargets.get(mid);
+            if (target < sinkId) {
+                low = mid + 1;
+            }
+            else if (target > sinkId) {
+                high = mid - 1;
+            }
+            else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Set<T> sinksClosure (T key)
+    {
+        return closure(key, true, false);
+    }
+
+    public Set<T> sourcesClosure (T key)
+    {
+        return closure(key, false, true);
+    }
+
+    public Set<T> transitiveClosure (T key)
+    {
+        return closure(key, true, true);
+    }
+
+    private Set<T> closure (T key, boolean sinks, boolean sources)
+    {
+        Set<T> retval = new HashSet<>();
+        int root = idOf(key);
+        if (root < 0) {
+            return retval;
+        }
+
+        BitSet visited = new BitSet(vertexCount);
+        int[] queue = new int[16];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = root;
+        visited.set(root);
+
+        while (head < tail) {
+            int id = queue[head++];
+            retval.add(keyAt(id));
+            for (int pass = 0; pass < 2; pass++) {
+                IntBuffer offsets;
+                IntBuffer targets;
+                if (pass == 0 && sinks) {
+                    offsets = sinkOffsets;
+                    targets = sinkTargets;
+                }
+                else if (pass == 1 && sources) {
+                    offsets = sourceOffsets;
+                    targets = sourceTargets;
+                }
+                else {
+                    continue;
+                }
+                int end = offsets.get(id + 1);
+                for (int i = offsets.get(id); i < end; i++) {
+                    int next = targets.get(i);
+                    if (!visited.get(next)) {
+                        visited.set(next);
+                        if (tail == queue.length) {
+                            queue = Arrays.copyOf(queue, queue.length * 2);
+                        }
+                        queue[tail++] = next;
+                    }
+                }
+            }
+        }
+
+        return retval;
+    }
+
+    private Set<T> decodeRow (int id, IntBuffer offsets, IntBuffer targets)
+    {
+        int start = offsets.get(id);
+        int end = offsets.get(id + 1);
+        Set<T> retval = new HashSet<>((end - start) * 2);
+        for (int i = start; i < end; i++) {
+            retval.add(keyAt(targets.get(i)));
+        }
+        return retval;
+    }
+
+    private T keyAt (int id)
+    {
+        int start = keyOffsets.get(id);
+        byte[] bytes = new byte[keyOffsets.get(id + 1) - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = keyBytes.get(start + i);
+        }
+        return codec.decode(bytes);
+    }
+
+    /**
+     * Binary search of the sorted key dictionary.
+     *
+     * @return the vertex id, or -1 if the key is not in the graph
+     */
+    private int idOf (T key)
+    {
+        byte[] encoded = codec.encode(key);
+        int low = 0;
+        int high = vertexCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareKey(mid, encoded);
+            if (cmp < 0) {
+                low = mid + 1;
+            }
+            else if (cmp > 0) {
+                high = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareKey (int id, byte[] encoded)
+    {
+        int start = keyOffsets.get(id);
+        int length = keyOffsets.get(id + 1) - start;
+        int common = Math.min(length, encoded.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = (keyBytes.get(start + i) & 0xff) - (encoded[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - encoded.length;
+    }
+}
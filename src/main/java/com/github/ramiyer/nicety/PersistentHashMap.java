@@ -0,0 +1,423 @@
+package com.github.ramiyer.nicety;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable hash map whose updates return a new map sharing all but the
+ * changed path with the old one. It is a hash array mapped trie: each
+ * node branches 32 ways on five bits of the hash, so a put or remove
+ * copies at most seven small nodes however large the map is. Versioned
+ * vertices of a {@link DirectedGraph} keep their adjacency in these, so
+ * adding an edge to a vertex with a million neighbours does not copy a
+ * million neighbours.
+ * <p>
+ * Keys and values may not be null.
+ */
+final class PersistentHashMap<K, V>
+{
+
+    private static final Object NOT_FOUND = new Object();
+
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(BitmapNode.EMPTY, 0);
+
+    /**
+     * A trie node: a flat array of key and value pairs. A pair with a null
+     * key holds a child node in place of the value.
+     */
+    private interface Node
+    {
+
+        Object[] pairs ();
+
+        Object find (int shift, int hash, Object key);
+
+        Node put (int shift, int hash, Object key, Object value, int[] sizeChange);
+
+        /**
+         * @return the node without the key, or null if it is left empty
+         */
+        Node remove (int shift, int hash, Object key, int[] sizeChange);
+    }
+
+    private final Node root;
+
+    private final int size;
+
+    private PersistentHashMap (Node root, int size)
+    {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty ()
+    {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    int size ()
+    {
+        return size;
+    }
+
+    boolean containsKey (Object key)
+    {
+        return key != null && root.find(0, hash(key), key) != NOT_FOUND;
+    }
+
+    /**
+     * @return the value, or null if the key is absent
+     */
+    @SuppressWarnings("unchecked")
+    V get (Object key)
+    {
+        if (key == null) {
+            return null;
+        }
+        Object value = root.find(0, hash(key), key);
+        return (value == NOT_FOUND) ? null : (V) value;
+    }
+
+    PersistentHashMap<K, V> plus (K key, V value)
+    {
+        int[] sizeChange = new int[1];
+        Node newRoot = root.put(0, hash(key), key, value, sizeChange);
+        return (newRoot == root) ? this : new PersistentHashMap<>(newRoot, size + sizeChange[0]);
+    }
+
+    PersistentHashMap<K, V> minus (Object key)
+    {
+        if (key == null) {
+            return this;
+        }
+        int[] sizeChange = new int[1];
+        Node newRoot = root.remove(0, hash(key), key, sizeChange);
+        if (newRoot == root) {
+            return this;
+        }
+        return (newRoot == null) ? empty() : new PersistentHashMap<>(newRoot, size + sizeChange[0]);
+    }
+
+    /**
+     * Unmodifiable view of the keys, with lookups in O(log n).
+     */
+    Set<K> keySet ()
+    {
+        return new AbstractSet<K>()
+        {
+
+            @Override
+            public Iterator<K> iterator ()
+            {
+                return new KeyIterator<>(root);
+            }
+
+            @Override
+            public int size ()
+            {
+                return size;
+            }
+
+            @Override
+            public boolean contains (Object key)
+            {
+                return containsKey(key);
+            }
+        };
+    }
+
+    private static int hash (Object key)
+    {
+        int hash = key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int bit (int hash, int shift)
+    {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    /**
+     * A node for two entries whose hashes agree up to the shift.
+     */
+    private static Node pair (int shift, Object key1, Object value1, int hash2, Object key2, Object value2)
+    {
+        int hash1 = hash(key1);
+        if (hash1 == hash2) {
+            return new CollisionNode(hash1, new Object[] {key1, value1, key2, value2});
+        }
+        int[] ignored = new int[1];
+        return BitmapNode.EMPTY.put(shift, hash1, key1, value1, ignored).put(shift, hash2, key2, value2, ignored);
+    }
+
+    private static Object[] replace (Object[] pairs, int index, Object element)
+    {
+        Object[] copy = pairs.clone();
+        copy[index] = element;
+        return copy;
+    }
+
+    private static Object[] insertPair (Object[] pairs, int index, Object key, Object value)
+    {
+        Object[] copy = new Object[pairs.length + 2];
+        System.arraycopy(pairs, 0, copy, 0, index);
+        copy[index] = key;
+        copy[index + 1] = value;
+        System.arraycopy(pairs, index, copy, index + 2, pairs.length - index);
+        return copy;
+    }
+
+    private static Object[] removePair (Object[] pairs, int index)
+    {
+        Object[] copy = new Object[pairs.length - 2];
+        System.arraycopy(pairs, 0, copy, 0, index);
+        System.arraycopy(pairs, index + 2, copy, index, pairs.length - index - 2);
+        return copy;
+    }
+
+    /**
+     * Entries and children for the hash slots set in the bitmap, in slot
+     * order.
+     */
+    private static final class BitmapNode implements Node
+    {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+
+        private final Object[] pairs;
+
+        BitmapNode (int bitmap, Object[] pairs)
+        {
+            this.bitmap = bitmap;
+            this.pairs = pairs;
+        }
+
+        @Override
+        public Object[] pairs ()
+        {
+            return pairs;
+        }
+
+        private int index (int bit)
+        {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        public Object find (int shift, int hash, Object key)
+        {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return NOT_FOUND;
+            }
+            int index = index(bit);
+            Object existing = pairs[index];
+            if (existing == null) {
+                return ((Node) pairs[index + 1]).find(shift + 5, hash, key);
+            }
+            return key.equals(existing) ? pairs[index + 1] : NOT_FOUND;
+        }
+
+        @Override
+        public Node put (int shift, int hash, Object key, Object value, int[] sizeChange)
+        {
+            int bit = bit(hash, shift);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                sizeChange[0] = 1;
+                return new BitmapNode(bitmap | bit, insertPair(pairs, index, key, value));
+            }
+            Object existing = pairs[index];
+            Object existingValue = pairs[index + 1];
+            if (existing == null) {
+                Node child = ((Node) existingValue).put(shift + 5, hash, key, value, sizeChange);
+                return (child == existingValue) ? this : new BitmapNode(bitmap, replace(pairs, index + 1, child));
+            }
+            if (key.equals(existing)) {
+                return value.equals(existingValue) ? this : new BitmapNode(bitmap, replace(pairs, index + 1, value));
+            }
+            sizeChange[0] = 1;
+            Object[] copy = replace(pairs, index, null);
+            copy[index + 1] = pair(shift + 5, existing, existingValue, hash, key, value);
+            return new BitmapNode(bitmap, copy);
+        }
+
+        @Override
+        public Node remove (int shift, int hash, Object key, int[] sizeChange)
+        {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = index(bit);
+            Object existing = pairs[index];
+            if (existing == null) {
+                Node child = (Node) pairs[index + 1];
+                Node newChild = child.remove(shift + 5, hash, key, sizeChange);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild == null) {
+                    return (bitmap == bit) ? null : new BitmapNode(bitmap ^ bit, removePair(pairs, index));
+                }
+                Object[] childPairs = newChild.pairs();
+                if (childPairs.length == 2 && childPairs[0] != null) {
+                    // a child down to one entry folds back into this node
+                    Object[] copy = replace(pairs, index, childPairs[0]);
+                    copy[index + 1] = childPairs[1];
+                    return new BitmapNode(bitmap, copy);
+                }
+                return new BitmapNode(bitmap, replace(pairs, index + 1, newChild));
+            }
+            if (!key.equals(existing)) {
+                return this;
+            }
+            sizeChange[0] = -1;
+            return (bitmap == bit) ? null : new BitmapNode(bitmap ^ bit, removePair(pairs, index));
+        }
+    }
+
+    /**
+     * Entries whose keys have the same full hash.
+     */
+    private static final class CollisionNode implements Node
+    {
+
+        private final int hash;
+
+        private final Object[] pairs;
+
+        CollisionNode (int hash, Object[] pairs)
+        {
+            this.hash = hash;
+            this.pairs = pairs;
+        }
+
+        @Override
+        public Object[] pairs ()
+        {
+            return pairs;
+        }
+
+        private int indexOf (Object key)
+        {
+            for (int i = 0; i < pairs.length; i += 2) {
+                if (key.equals(pairs[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public Object find (int shift, int hash, Object key)
+        {
+            if (hash != this.hash) {
+                return NOT_FOUND;
+            }
+            int index = indexOf(key);
+            return (index < 0) ? NOT_FOUND : pairs[index + 1];
+        }
+
+        @Override
+        public Node put (int shift, int hash, Object key, Object value, int[] sizeChange)
+        {
+            if (hash != this.hash) {
+                // branch above this node on the bits where the hashes differ
+                return new BitmapNode(bit(this.hash, shift), new Object[] {null, this})
+                        .put(shift, hash, key, value, sizeChange);
+            }
+            int index = indexOf(key);
+            if (index >= 0) {
+                return value.equals(pairs[index + 1]) ? this : new CollisionNode(hash, replace(pairs, index + 1, value));
+            }
+            sizeChange[0] = 1;
+            Object[] copy = Arrays.copyOf(pairs, pairs.length + 2);
+            copy[pairs.length] = key;
+            copy[pairs.length + 1] = value;
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        public Node remove (int shift, int hash, Object key, int[] sizeChange)
+        {
+            int index = (hash == this.hash) ? indexOf(key) : -1;
+            if (index < 0) {
+                return this;
+            }
+            sizeChange[0] = -1;
+            return (pairs.length == 2) ? null : new CollisionNode(hash, removePair(pairs, index));
+        }
+    }
+
+    /**
+     * Depth first walk over the pairs arrays of the trie.
+     */
+    private static final class KeyIterator<K> implements Iterator<K>
+    {
+
+        /**
+         * Seven levels of five bits cover the hash; one more for a
+         * collision node.
+         */
+        private final Object[][] stack = new Object[8][];
+
+        private final int[] positions = new int[8];
+
+        private int depth;
+
+        private Object next;
+
+        KeyIterator (Node root)
+        {
+            stack[0] = root.pairs();
+            advance();
+        }
+
+        private void advance ()
+        {
+            next = null;
+            while (depth >= 0) {
+                Object[] pairs = stack[depth];
+                int position = positions[depth];
+                if (position >= pairs.length) {
+                    depth--;
+                    continue;
+                }
+                positions[depth] = position + 2;
+                Object key = pairs[position];
+                if (key != null) {
+                    next = key;
+                    return;
+                }
+                depth++;
+                stack[depth] = ((Node) pairs[position + 1]).pairs();
+                positions[depth] = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext ()
+        {
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public K next ()
+        {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            K key = (K) next;
+            advance();
+            return key;
+        }
+    }
+}
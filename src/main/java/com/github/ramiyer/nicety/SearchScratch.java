@@ -0,0 +1,229 @@
+package com.github.ramiyer.nicety;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-thread working memory for the bounded graph searches in
+ * {@link DirectedGraph}. Every vertex touched by a search is given a
+ * slot, and the per-vertex search state lives in primitive arrays
+ * indexed by slot. The arrays are kept between searches on the same
+ * thread, so a query only allocates for the part of the graph it visits
+ * beyond what earlier queries already sized.
+ */
+final class SearchScratch
+{
+
+    static final int UNSEEN = -2;
+
+    static final int ROOT = -1;
+
+    private static final ThreadLocal<SearchScratch> SCRATCH = ThreadLocal.withInitial(SearchScratch::new);
+
+    private final Map<Object, Integer> slots = new HashMap<>();
+
+    Object[] keys = new Object[16];
+
+    double[] distances = new double[16];
+
+    int[] parents = new int[16];
+
+    int[] reverseParents = new int[16];
+
+    int count;
+
+    final DoubleIntHeap heap = new DoubleIntHeap();
+
+    final IntList frontier = new IntList();
+
+    final IntList reverseFrontier = new IntList();
+
+    final IntList next = new IntList();
+
+    private SearchScratch ()
+    {
+    }
+
+    static SearchScratch get ()
+    {
+        SearchScratch scratch = SCRATCH.get();
+        scratch.reset();
+        return scratch;
+    }
+
+    /**
+     * Drop references to the keys of the last search while keeping the
+     * arrays for the next one.
+     */
+    void reset ()
+    {
+        Arrays.fill(keys, 0, count, null);
+        slots.clear();
+        count = 0;
+        heap.size = 0;
+        frontier.size = 0;
+        reverseFrontier.size = 0;
+        next.size = 0;
+    }
+
+    /**
+     * @return the slot of the key, allocating one if the search has not
+     * seen the key before
+     */
+    int slot (Object key)
+    {
+        Integer slot = slots.get(key);
+        if (slot != null) {
+            return slot;
+        }
+        if (count == keys.length) {
+            int capacity = count * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            distances = Arrays.copyOf(distances, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            reverseParents = Arrays.copyOf(reverseParents, capacity);
+        }
+        int newSlot = count++;
+        keys[newSlot] = key;
+        distances[newSlot] = Double.POSITIVE_INFINITY;
+        parents[newSlot] = UNSEEN;
+        reverseParents[newSlot] = UNSEEN;
+        slots.put(key, newSlot);
+        return newSlot;
+    }
+
+    /**
+     * Walk {@link #parents} back from the slot to the root.
+     */
+    @SuppressWarnings("unchecked")
+    <T> List<T> path (int slot)
+    {
+        List<T> path = new ArrayList<>();
+        for (int current = slot; current >= 0; current = parents[current]) {
+            path.add((T) keys[current]);
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    /**
+     * Walk {@link #parents} back from the meeting slot to the forward
+     * root and {@link #reverseParents} on to the reverse root.
+     */
+    @SuppressWarnings("unchecked")
+    <T> List<T> bidirectionalPath (int meeting)
+    {
+        List<T> path = path(meeting);
+        for (int current = reverseParents[meeting]; current >= 0; current = reverseParents[current]) {
+            path.add((T) keys[current]);
+        }
+        return path;
+    }
+
+    /**
+     * Binary min-heap of (priority, slot) pairs. Decrease-key is done by
+     * pushing a duplicate; callers skip entries whose priority is worse
+     * than the slot's recorded distance.
+     */
+    static final class DoubleIntHeap
+    {
+
+        private double[] priorities = new double[16];
+
+        private int[] values = new int[16];
+
+        private int size;
+
+        boolean isEmpty ()
+        {
+            return size == 0;
+        }
+
+        double peekPriority ()
+        {
+            return priorities[0];
+        }
+
+        void push (double priority, int value)
+        {
+            if (size == priorities.length) {
+                priorities = Arrays.copyOf(priorities, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            int index = size++;
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (priorities[parent] <= priority) {
+                    break;
+                }
+                priorities[index] = priorities[parent];
+                values[index] = values[parent];
+                index = parent;
+            }
+            priorities[index] = priority;
+            values[index] = value;
+        }
+
+        int pop ()
+        {
+            int result = values[0];
+            size--;
+            double priority = priorities[size];
+            int value = values[size];
+            int index = 0;
+            int half = size >>> 1;
+            while (index < half) {
+                int child = 2 * index + 1;
+                if (child + 1 < size && priorities[child + 1] < priorities[child]) {
+                    child++;
+                }
+                if (priority <= priorities[child]) {
+                    break;
+                }
+                priorities[index] = priorities[child];
+                values[index] = values[child];
+                index = child;
+            }
+            priorities[index] = priority;
+            values[index] = value;
+            return result;
+        }
+    }
+
+    /**
+     * Growable list of slots, used for BFS frontiers.
+     */
+    static final class IntList
+    {
+
+        int[] values = new int[16];
+
+        int size;
+
+        void add (int value)
+        {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        /**
+         * Exchange contents with another list so the old frontier's
+         * array can be reused for the next level.
+         */
+        void swap (IntList other)
+        {
+            int[] swapValues = values;
+            values = other.values;
+            other.values = swapValues;
+            int swapSize = size;
+            size = other.size;
+            other.size = swapSize;
+        }
+    }
+}
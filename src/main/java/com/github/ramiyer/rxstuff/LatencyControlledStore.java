@@ -0,0 +1,492 @@
+package com.github.ramiyer.rxstuff;
+
+import com.github.ramiyer.leveldb.DataStoreException;
+import com.github.ramiyer.leveldb.KeyValueDataStore;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+
+import java.io.Closeable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the tail latency of reads from a {@link KeyValueDataStore}.
+ * <p>
+ * Each read goes to the primary store. If it has not answered within the
+ * primary's recent latency percentile, the same read is sent to the
+ * secondary store (a replica, a cache in front of the primary, or the
+ * primary itself) and whichever answers first wins. Failed attempts are
+ * retried with jittered exponential backoff, and the whole call, retries
+ * included, fails with {@link DeadlineExceededException} once its
+ * deadline passes.
+ * <p>
+ * Hedges and retries both add load exactly when a store is struggling,
+ * so they draw from a shared budget that every read tops up by a fixed
+ * fraction; once it is spent, reads get a single attempt. Reads beyond
+ * the in-flight limit are rejected straight away with
+ * {@link OverloadedException} instead of queueing behind the slow ones.
+ * <p>
+ * Store calls block, so they run on a pool of threads owned by this
+ * store, and a call that is given up on keeps its thread until it
+ * returns; later reads go to the other threads instead of queueing behind
+ * it. A read counts against the in-flight limit until every store call it
+ * started has returned, so abandoned calls cannot pile up beyond it.
+ * <p>
+ * Writes go to the primary unchanged.
+ */
+public class LatencyControlledStore<K, V> implements KeyValueDataStore<K, V>, Closeable
+{
+
+    public static final class Options
+    {
+
+        private long deadlineNanos = TimeUnit.SECONDS.toNanos(1);
+
+        private double hedgePercentile = 0.95;
+
+        private long initialHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(10);
+
+        private int latencyWindow = 1024;
+
+        private int maxRetries = 2;
+
+        private long retryBackoffNanos = TimeUnit.MILLISECONDS.toNanos(5);
+
+        private long maxRetryBackoffNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private double budgetRatio = 0.1;
+
+        private int maxBudget = 100;
+
+        private int maxInFlight = 256;
+
+        private int readThreads = 64;
+
+        private Scheduler scheduler = Schedulers.computation();
+
+        public Options deadline(long deadline, TimeUnit unit)
+        {
+            this.deadlineNanos = unit.toNanos(deadline);
+            return this;
+        }
+
+        /**
+         * Percentile of recent primary latencies after which a read is
+         * hedged.
+         */
+        public Options hedgePercentile(double hedgePercentile)
+        {
+            this.hedgePercentile = hedgePercentile;
+            return this;
+        }
+
+        /**
+         * Hedge delay used until enough latencies have been seen to take
+         * a percentile.
+         */
+        public Options initialHedgeDelay(long delay, TimeUnit unit)
+        {
+            this.initialHedgeDelayNanos = unit.toNanos(delay);
+            return this;
+        }
+
+        public Options latencyWindow(int latencyWindow)
+        {
+            this.latencyWindow = latencyWindow;
+            return this;
+        }
+
+        public Options maxRetries(int maxRetries)
+        {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Backoff before the first retry; it doubles for every further
+         * retry up to the maximum, and each wait is drawn uniformly below
+         * the current backoff.
+         */
+        public Options retryBackoff(long backoff, long maxBackoff, TimeUnit unit)
+        {
+            this.retryBackoffNanos = unit.toNanos(backoff);
+            this.maxRetryBackoffNanos = unit.toNanos(maxBackoff);
+            return this;
+        }
+
+        /**
+         * Hedges and retries allowed per read over time, and the most that
+         * can be saved up for a burst.
+         */
+        public Options budget(double ratio, int max)
+        {
+            this.budgetRatio = ratio;
+            this.maxBudget = max;
+            return this;
+        }
+
+        public Options maxInFlight(int maxInFlight)
+        {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Threads that store calls run on, shared by primary and
+         * secondary. A thread stays busy while its call is stalled, so
+         * this should cover the stalls expected at once.
+         */
+        public Options readThreads(int readThreads)
+        {
+            this.readThreads = readThreads;
+            return this;
+        }
+
+        /**
+         * Scheduler for the hedge, retry and deadline timers.
+         */
+        public Options scheduler(Scheduler scheduler)
+        {
+            this.scheduler = scheduler;
+            return this;
+        }
+    }
+
+    /**
+     * The read was rejected because too many reads are in flight.
+     */
+    public static class OverloadedException extends RuntimeException
+    {
+
+        public OverloadedException(String message)
+        {
+            super(message);
+        }
+    }
+
+    /**
+     * The read did not complete within its deadline.
+     */
+    public static class DeadlineExceededException extends RuntimeException
+    {
+
+        public DeadlineExceededException(String message, Throwable cause)
+        {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Budget counted in thousandths so that fractional deposits add up
+     * without a lock.
+     */
+    private static final long UNIT = 1000;
+
+    private final KeyValueDataStore<K, V> primary;
+
+    private final KeyValueDataStore<K, V> secondary;
+
+    private final Options options;
+
+    private final LatencyTracker latency;
+
+    private final Semaphore inFlight;
+
+    private final ThreadPoolExecutor readExecutor;
+
+    private final Scheduler readScheduler;
+
+    private final AtomicLong budget;
+
+    private final long deposit;
+
+    private final long maxBudget;
+
+    private final AtomicLong reads = new AtomicLong();
+
+    private final AtomicLong hedges = new AtomicLong();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong deadlinesExceeded = new AtomicLong();
+
+    /**
+     * @param secondary
+     *         store to hedge reads to, or null to only retry
+     */
+    public LatencyControlledStore(KeyValueDataStore<K, V> primary, KeyValueDataStore<K, V> secondary,
+                                  Options options)
+    {
+        this.primary = primary;
+        this.secondary = secondary;
+        this.options = options;
+        this.latency = new LatencyTracker(options.latencyWindow, options.hedgePercentile,
+                                          options.initialHedgeDelayNanos);
+        this.inFlight = new Semaphore(options.maxInFlight);
+        this.readExecutor = new ThreadPoolExecutor(options.readThreads, options.readThreads, 60, TimeUnit.SECONDS,
+                                                   new LinkedBlockingQueue<>(),
+                                                   new ThreadFactoryBuilder().setDaemon(true)
+                                                           .setNameFormat("latency-controlled-read-%d")
+                                                           .build());
+        this.readExecutor.allowCoreThreadTimeOut(true);
+        this.readScheduler = Schedulers.from(readExecutor);
+        this.deposit = Math.round(options.budgetRatio * UNIT);
+        this.maxBudget = options.maxBudget * UNIT;
+        this.budget = new AtomicLong(maxBudget);
+    }
+
+    @Override
+    public void put(K key, V value) throws DataStoreException
+    {
+        primary.put(key, value);
+    }
+
+    /**
+     * Blocking read with the default deadline.
+     *
+     * @throws OverloadedException
+     *         if too many reads are in flight
+     * @throws DeadlineExceededException
+     *         if the read took longer than the deadline
+     */
+    @Override
+    public V get(K key)
+    {
+        return getAsync(key).toBlocking().single();
+    }
+
+    public Observable<V> getAsync(K key)
+    {
+        return getAsync(key, options.deadlineNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Read the key within the deadline. Nothing happens until the
+     * returned observable is subscribed, and unsubscribing gives up on
+     * the read.
+     */
+    public Observable<V> getAsync(K key, long deadline, TimeUnit unit)
+    {
+        return Observable.defer(() -> {
+            if (!inFlight.tryAcquire()) {
+                rejected.incrementAndGet();
+                return Observable.error(new OverloadedException(options.maxInFlight + " reads in flight"));
+            }
+            Permit permit = new Permit(inFlight);
+            Action0 release = permit::endSubscription;
+            reads.incrementAndGet();
+            deposit();
+            return Observable.defer(() -> attempt(key, permit))
+                    .retryWhen(errors -> errors.zipWith(Observable.range(1, options.maxRetries + 1),
+                                                        (error, retry) -> backoff(error, retry))
+                            .flatMap(wait -> wait))
+                    .timeout(deadline, unit, options.scheduler)
+                    .onErrorResumeNext(error -> Observable.error(
+                            (error instanceof TimeoutException)
+                            ? deadlineExceeded(key, unit.toMillis(deadline), error)
+                            : error))
+                    .doOnTerminate(release)
+                    .doOnUnsubscribe(release);
+        });
+    }
+
+    public long getReads()
+    {
+        return reads.get();
+    }
+
+    public long getHedges()
+    {
+        return hedges.get();
+    }
+
+    public long getRetries()
+    {
+        return retries.get();
+    }
+
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+    public long getDeadlinesExceeded()
+    {
+        return deadlinesExceeded.get();
+    }
+
+    /**
+     * How long a read currently waits for the primary before hedging.
+     */
+    public long getHedgeDelay(TimeUnit unit)
+    {
+        return unit.convert(latency.percentileNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops the read threads once their current calls return. Reads
+     * started afterwards fail.
+     */
+    @Override
+    public void close()
+    {
+        readExecutor.shutdown();
+    }
+
+    /**
+     * One hedged attempt. Built afresh for every retry, as an amb
+     * observable remembers its winner across subscriptions.
+     */
+    private Observable<V> attempt(K key, Permit permit)
+    {
+        Observable<V> primaryRead = read(primary, key, true, permit);
+        if (secondary == null) {
+            return primaryRead;
+        }
+        Observable<V> hedge = Observable.timer(latency.percentileNanos(), TimeUnit.NANOSECONDS, options.scheduler)
+                .flatMap(tick -> {
+                    if (!withdraw()) {
+                        return Observable.never();
+                    }
+                    hedges.incrementAndGet();
+                    return read(secondary, key, false, permit);
+                });
+        return Observable.amb(primaryRead, hedge);
+    }
+
+    /**
+     * A single blocking read on a read thread. Primary latencies are
+     * recorded even when the read has lost to a hedge, since those slow
+     * reads are what the percentile has to see.
+     */
+    private Observable<V> read(KeyValueDataStore<K, V> store, K key, boolean record, Permit permit)
+    {
+        return Observable.<V>create(subscriber -> {
+            if (!permit.startCall()) {
+                // the read was over before this call got a thread
+                return;
+            }
+            long start = System.nanoTime();
+            V value;
+            try {
+                value = store.get(key);
+            }
+            catch (RuntimeException e) {
+                subscriber.onError(e);
+                return;
+            }
+            finally {
+                if (record) {
+                    latency.record(System.nanoTime() - start);
+                }
+                permit.endCall();
+            }
+            subscriber.onNext(value);
+            subscriber.onCompleted();
+        }).subscribeOn(readScheduler);
+    }
+
+    private Observable<Long> backoff(Throwable error, int retry)
+    {
+        if (retry > options.maxRetries || !withdraw()) {
+            return Observable.error(error);
+        }
+        retries.incrementAndGet();
+        long ceiling = Math.min(options.maxRetryBackoffNanos, options.retryBackoffNanos << Math.min(retry - 1, 30));
+        long wait = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        return Observable.timer(wait, TimeUnit.NANOSECONDS, options.scheduler);
+    }
+
+    private DeadlineExceededException deadlineExceeded(K key, long deadlineMillis, Throwable cause)
+    {
+        deadlinesExceeded.incrementAndGet();
+        return new DeadlineExceededException("read of " + key + " took longer than " + deadlineMillis + " ms", cause);
+    }
+
+    private void deposit()
+    {
+        long current;
+        do {
+            current = budget.get();
+            if (current >= maxBudget) {
+                return;
+            }
+        }
+        while (!budget.compareAndSet(current, Math.min(maxBudget, current + deposit)));
+    }
+
+    private boolean withdraw()
+    {
+        long current;
+        do {
+            current = budget.get();
+            if (current < UNIT) {
+                return false;
+            }
+        }
+        while (!budget.compareAndSet(current, current - UNIT));
+        return true;
+    }
+
+    /**
+     * A read's place in the in-flight limit, held by its subscription and
+     * by each store call it has running, and given back when the last of
+     * them lets go.
+     */
+    private static final class Permit
+    {
+
+        private final Semaphore semaphore;
+
+        private final AtomicInteger holders = new AtomicInteger(1);
+
+        private final AtomicBoolean subscribed = new AtomicBoolean(true);
+
+        Permit(Semaphore semaphore)
+        {
+            this.semaphore = semaphore;
+        }
+
+        /**
+         * @return false if the permit was already given back
+         */
+        boolean startCall()
+        {
+            int current;
+            do {
+                current = holders.get();
+                if (current == 0) {
+                    return false;
+                }
+            }
+            while (!holders.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        void endCall()
+        {
+            if (holders.decrementAndGet() == 0) {
+                semaphore.release();
+            }
+        }
+
+        void endSubscription()
+        {
+            if (subscribed.compareAndSet(true, false)) {
+                endCall();
+            }
+        }
+    }
+}
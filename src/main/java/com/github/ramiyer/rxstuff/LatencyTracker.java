@@ -0,0 +1,68 @@
+package com.github.ramiyer.rxstuff;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Percentile of recent latencies over a fixed window of samples.
+ * Recording is a pair of atomic writes; the percentile is recomputed
+ * from a sorted copy of the window every {@code window / 8} samples and
+ * cached in between.
+ */
+class LatencyTracker
+{
+
+    private final AtomicLongArray window;
+
+    private final AtomicLong recorded = new AtomicLong();
+
+    private final double percentile;
+
+    private final int recomputeEvery;
+
+    private volatile long percentileNanos;
+
+    /**
+     * @param windowSize
+     *         number of most recent samples considered
+     * @param percentile
+     *         percentile to track, in (0, 1)
+     * @param initialNanos
+     *         value reported until the window has filled once
+     */
+    LatencyTracker(int windowSize, double percentile, long initialNanos)
+    {
+        if (!(percentile > 0 && percentile < 1)) {
+            throw new IllegalArgumentException("percentile must be in (0, 1): " + percentile);
+        }
+        this.window = new AtomicLongArray(windowSize);
+        this.percentile = percentile;
+        this.recomputeEvery = Math.max(1, windowSize / 8);
+        this.percentileNanos = initialNanos;
+    }
+
+    void record(long nanos)
+    {
+        long count = recorded.incrementAndGet();
+        window.set((int) ((count - 1) % window.length()), nanos);
+        if (count >= window.length() && count % recomputeEvery == 0) {
+            recompute();
+        }
+    }
+
+    long percentileNanos()
+    {
+        return percentileNanos;
+    }
+
+    private void recompute()
+    {
+        long[] samples = new long[window.length()];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = window.get(i);
+        }
+        Arrays.sort(samples);
+        percentileNanos = samples[(int) Math.min(samples.length - 1, Math.floor(percentile * samples.length))];
+    }
+}
@@ -0,0 +1,588 @@
+package com.github.ramiyer.rxstuff;
+
+import com.github.ramiyer.leveldb.ChangeFeed;
+import com.github.ramiyer.leveldb.LDB;
+import com.google.common.primitives.UnsignedBytes;
+import org.iq80.leveldb.DBIterator;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+import rx.Observable;
+import rx.Producer;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.schedulers.Schedulers;
+import rx.subscriptions.Subscriptions;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.iq80.leveldb.impl.Iq80DBFactory.asString;
+import static org.iq80.leveldb.impl.Iq80DBFactory.bytes;
+
+/**
+ * Backpressured streaming access to an {@link LDB}.
+ * <p>
+ * Scans hold an open {@link DBIterator} and advance it only as far as
+ * the subscriber has requested, on a worker of the given scheduler, so a
+ * scan over millions of keys never holds more than the requested entries
+ * in memory. Writes do the reverse and turn a stream of entries into
+ * {@link LDB.WriteBatch}es of a fixed size.
+ */
+public final class RxLDB
+{
+
+    private RxLDB()
+    {
+    }
+
+    /**
+     * Scan all entries whose key starts with the prefix, in key order,
+     * on the io scheduler.
+     */
+    public static Observable<Map.Entry<String, String>> scanPrefix(LDB ldb, String prefix)
+    {
+        return scanPrefix(ldb, prefix, Schedulers.io());
+    }
+
+    public static Observable<Map.Entry<String, String>> scanPrefix(LDB ldb, String prefix, Scheduler scheduler)
+    {
+        byte[] start = bytes(prefix);
+        return scan(ldb, start, key -> startsWith(key, start), scheduler);
+    }
+
+    /**
+     * Scan all entries with {@code from <= key < to}, in key order.
+     *
+     * @param to
+     *         exclusive upper bound, or null to scan to the end of the store
+     */
+    public static Observable<Map.Entry<String, String>> scanRange(LDB ldb, String from, String to, Scheduler scheduler)
+    {
+        byte[] start = bytes(from);
+        if (to == null) {
+            return scan(ldb, start, key -> true, scheduler);
+        }
+        byte[] end = bytes(to);
+        return scan(ldb, start, key -> UnsignedBytes.lexicographicalComparator().compare(key, end) < 0, scheduler);
+    }
+
+    /**
+     * A prefix scan as a Reactive Streams {@link Publisher}.
+     */
+    public static Publisher<Map.Entry<String, String>> prefixPublisher(LDB ldb, String prefix, Scheduler scheduler)
+    {
+        Observable<Map.Entry<String, String>> scan = scanPrefix(ldb, prefix, scheduler);
+        return subscriber -> {
+            PublisherBridge<Map.Entry<String, String>> bridge = new PublisherBridge<>(subscriber);
+            // the scan emits nothing until requested, so subscribing first
+            // still delivers onSubscribe before any other signal
+            scan.unsafeSubscribe(bridge);
+            subscriber.onSubscribe(new Subscription()
+            {
+
+                @Override
+                public void request(long n)
+                {
+                    if (n <= 0) {
+                        bridge.unsubscribe();
+                        subscriber.onError(new IllegalArgumentException("request must be positive: " + n));
+                        return;
+                    }
+                    bridge.requestMore(n);
+                }
+
+                @Override
+                public void cancel()
+                {
+                    bridge.unsubscribe();
+                }
+            });
+        };
+    }
+
+    /**
+     * Write every entry to the store, in write batches of batchSize
+     * entries, once the returned observable is subscribed. It emits the
+     * running total of committed entries after each batch and completes
+     * once the last batch is committed, so the last value seen is how far
+     * the store is known to have got.
+     * <p>
+     * Entries are requested from upstream one batch at a time, and only
+     * while the subscriber wants another total, so at most batchSize
+     * entries are buffered. If the entries fail, those already buffered
+     * are still committed before the error is passed on; if a commit
+     * fails, upstream is cancelled and that failure is passed on.
+     */
+    public static Observable<Long> write(LDB ldb, Observable<? extends Map.Entry<String, String>> entries,
+                                         int batchSize)
+    {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        return Observable.create(child -> {
+            BatchWriter writer = new BatchWriter(ldb, batchSize, child);
+            child.add(writer);
+            child.setProducer(writer::requestTotals);
+            entries.unsafeSubscribe(writer);
+        });
+    }
+
+    /**
+     * Committed write batches after the cursor, replayed from the change
+     * feed's buffer and then followed live, delivered on the io scheduler.
+     *
+     * @see #changes(LDB, long, Scheduler)
+     */
+    public static Observable<ChangeFeed.MutationBatch> changes(LDB ldb, long afterSequence)
+    {
+        return changes(ldb, afterSequence, Schedulers.io());
+    }
+
+    /**
+     * Committed write batches after the cursor, in sequence order. To
+     * resume after a disconnect, subscribe again with the sequence of the
+     * last batch processed.
+     * <p>
+     * Subscribers read straight from the change feed's replay buffer as
+     * they request more, so nothing is queued per subscriber. A subscriber
+     * that falls a whole buffer behind, or whose cursor is already older
+     * than the buffer or ahead of the last committed batch, is failed
+     * with a {@link ChangeFeed.CursorExpiredException}.
+     */
+    public static Observable<ChangeFeed.MutationBatch> changes(LDB ldb, long afterSequence, Scheduler scheduler)
+    {
+        return Observable.create(subscriber -> {
+            ChangeFeed feed = ldb.changeFeed();
+            if (feed == null) {
+                subscriber.onError(new IllegalStateException("store was opened without a change feed"));
+                return;
+            }
+            try {
+                feed.checkCursor(afterSequence);
+            }
+            catch (ChangeFeed.CursorExpiredException e) {
+                subscriber.onError(e);
+                return;
+            }
+            FeedProducer producer = new FeedProducer(feed, afterSequence + 1, subscriber, scheduler.createWorker());
+            Runnable unregister = feed.addListener(batch -> producer.schedule());
+            subscriber.add(Subscriptions.create(() -> {
+                unregister.run();
+                producer.worker.unsubscribe();
+            }));
+            subscriber.setProducer(producer);
+        });
+    }
+
+    private interface KeyFilter
+    {
+        boolean inRange(byte[] key);
+    }
+
+    private static Observable<Map.Entry<String, String>> scan(LDB ldb, byte[] start, KeyFilter filter,
+                                                              Scheduler scheduler)
+    {
+        return Observable.create(subscriber -> {
+            ScanProducer producer = new ScanProducer(ldb, start, filter, subscriber, scheduler.createWorker());
+            subscriber.add(Subscriptions.create(producer::cancel));
+            subscriber.setProducer(producer);
+        });
+    }
+
+    private static boolean startsWith(byte[] key, byte[] prefix)
+    {
+        if (key.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Emits iterator entries up to the outstanding request. The iterator
+     * is only ever touched from the worker, which runs one action at a
+     * time.
+     */
+    private static final class ScanProducer implements Producer, Action0
+    {
+
+        private final LDB ldb;
+        private final byte[] start;
+        private final KeyFilter filter;
+        private final Subscriber<? super Map.Entry<String, String>> child;
+        private final Scheduler.Worker worker;
+        private final AtomicLong requested = new AtomicLong();
+        private DBIterator iterator;
+        private boolean done;
+
+        ScanProducer(LDB ldb, byte[] start, KeyFilter filter,
+                     Subscriber<? super Map.Entry<String, String>> child, Scheduler.Worker worker)
+        {
+            this.ldb = ldb;
+            this.start = start;
+            this.filter = filter;
+            this.child = child;
+            this.worker = worker;
+        }
+
+        @Override
+        public void request(long n)
+        {
+            if (n <= 0) {
+                return;
+            }
+            long previous;
+            long next;
+            do {
+                previous = requested.get();
+                next = previous + n;
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+            }
+            while (!requested.compareAndSet(previous, next));
+            if (previous == 0) {
+                worker.schedule(this);
+            }
+        }
+
+        void cancel()
+        {
+            worker.schedule(this::finish);
+        }
+
+        @Override
+        public void call()
+        {
+            if (done) {
+                return;
+            }
+            try {
+                if (iterator == null) {
+                    iterator = ldb.iterator();
+                    iterator.seek(start);
+                }
+                long outstanding = requested.get();
+                while (true) {
+                    long emitted = 0;
+                    while (emitted < outstanding) {
+                        if (child.isUnsubscribed()) {
+                            finish();
+                            return;
+                        }
+                        if (!iterator.hasNext()) {
+                            finish();
+                            child.onCompleted();
+                            return;
+                        }
+                        Map.Entry<byte[], byte[]> entry = iterator.next();
+                        if (!filter.inRange(entry.getKey())) {
+                            finish();
+                            child.onCompleted();
+                            return;
+                        }
+                        child.onNext(new AbstractMap.SimpleImmutableEntry<>(asString(entry.getKey()),
+                                                                            asString(entry.getValue())));
+                        if (outstanding != Long.MAX_VALUE) {
+                            emitted++;
+                        }
+                    }
+                    outstanding = requested.addAndGet(-emitted);
+                    if (outstanding == 0) {
+                        return;
+                    }
+                }
+            }
+            catch (RuntimeException e) {
+                finish();
+                child.onError(e);
+            }
+        }
+
+        private void finish()
+        {
+            if (done) {
+                return;
+            }
+            done = true;
+            try {
+                if (iterator != null) {
+                    iterator.close();
+                }
+            }
+            catch (IOException e) {
+                // nothing left to read from it
+            }
+            finally {
+                iterator = null;
+                worker.unsubscribe();
+            }
+        }
+    }
+
+    /**
+     * Emits batches from the change feed's buffer on the worker as they
+     * are requested and committed, so a slow subscriber never holds up the
+     * writer that committed them.
+     */
+    private static final class FeedProducer implements Producer, Action0
+    {
+
+        private final ChangeFeed feed;
+        private final Subscriber<? super ChangeFeed.MutationBatch> child;
+        private final Scheduler.Worker worker;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private long nextSequence;
+        private boolean done;
+
+        FeedProducer(ChangeFeed feed, long nextSequence, Subscriber<? super ChangeFeed.MutationBatch> child,
+                     Scheduler.Worker worker)
+        {
+            this.feed = feed;
+            this.nextSequence = nextSequence;
+            this.child = child;
+            this.worker = worker;
+        }
+
+        @Override
+        public void request(long n)
+        {
+            if (n <= 0) {
+                return;
+            }
+            long previous;
+            long next;
+            do {
+                previous = requested.get();
+                next = previous + n;
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+            }
+            while (!requested.compareAndSet(previous, next));
+            schedule();
+        }
+
+        void schedule()
+        {
+            if (wip.getAndIncrement() == 0) {
+                worker.schedule(this);
+            }
+        }
+
+        @Override
+        public void call()
+        {
+            int missed = 1;
+            do {
+                if (done) {
+                    return;
+                }
+                long outstanding = requested.get();
+                long emitted = 0;
+                while (emitted < outstanding) {
+                    if (child.isUnsubscribed()) {
+                        return;
+                    }
+                    ChangeFeed.MutationBatch batch;
+                    try {
+                        batch = feed.get(nextSequence);
+                    }
+                    catch (ChangeFeed.CursorExpiredException e) {
+                        done = true;
+                        child.onError(e);
+                        return;
+                    }
+                    if (batch == null) {
+                        break;
+                    }
+                    nextSequence++;
+                    child.onNext(batch);
+                    if (outstanding != Long.MAX_VALUE) {
+                        emitted++;
+                    }
+                }
+                if (emitted > 0) {
+                    requested.addAndGet(-emitted);
+                }
+                missed = wip.addAndGet(-missed);
+            }
+            while (missed != 0);
+        }
+    }
+
+    /**
+     * Adapts an rx subscription to a Reactive Streams subscriber.
+     */
+    private static final class PublisherBridge<T> extends Subscriber<T>
+    {
+
+        private final org.reactivestreams.Subscriber<? super T> subscriber;
+
+        PublisherBridge(org.reactivestreams.Subscriber<? super T> subscriber)
+        {
+            this.subscriber = subscriber;
+            // without an initial request rx asks the producer for everything
+            request(0);
+        }
+
+        @Override
+        public void onNext(T t)
+        {
+            subscriber.onNext(t);
+        }
+
+        @Override
+        public void onError(Throwable e)
+        {
+            subscriber.onError(e);
+        }
+
+        @Override
+        public void onCompleted()
+        {
+            subscriber.onComplete();
+        }
+
+        void requestMore(long n)
+        {
+            request(n);
+        }
+    }
+
+    /**
+     * Buffers entries and commits them a batch at a time. The next batch
+     * is requested from upstream only once the child has asked for the
+     * total that follows it, so every total emitted was asked for.
+     */
+    private static final class BatchWriter extends Subscriber<Map.Entry<String, String>>
+    {
+
+        private final LDB ldb;
+        private final int batchSize;
+        private final Subscriber<? super Long> child;
+        private final List<Map.Entry<String, String>> buffer;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicBoolean waiting = new AtomicBoolean(true);
+        private long committed;
+        private boolean done;
+
+        BatchWriter(LDB ldb, int batchSize, Subscriber<? super Long> child)
+        {
+            this.ldb = ldb;
+            this.batchSize = batchSize;
+            this.child = child;
+            this.buffer = new ArrayList<>(batchSize);
+            // nothing is requested from upstream until the child asks
+            request(0);
+        }
+
+        void requestTotals(long n)
+        {
+            if (n <= 0) {
+                return;
+            }
+            long previous;
+            long next;
+            do {
+                previous = requested.get();
+                next = previous + n;
+                if (next < 0) {
+                    next = Long.MAX_VALUE;
+                }
+            }
+            while (!requested.compareAndSet(previous, next));
+            if (waiting.compareAndSet(true, false)) {
+                request(batchSize);
+            }
+        }
+
+        @Override
+        public void onNext(Map.Entry<String, String> entry)
+        {
+            if (done) {
+                return;
+            }
+            buffer.add(entry);
+            if (buffer.size() < batchSize) {
+                return;
+            }
+            try {
+                flush();
+            }
+            catch (RuntimeException e) {
+                done = true;
+                unsubscribe();
+                child.onError(e);
+                return;
+            }
+            waiting.set(true);
+            if (requested.get() > 0 && waiting.compareAndSet(true, false)) {
+                request(batchSize);
+            }
+        }
+
+        @Override
+        public void onCompleted()
+        {
+            if (done) {
+                return;
+            }
+            done = true;
+            try {
+                flush();
+            }
+            catch (RuntimeException e) {
+                child.onError(e);
+                return;
+            }
+            child.onCompleted();
+        }
+
+        @Override
+        public void onError(Throwable e)
+        {
+            if (done) {
+                return;
+            }
+            done = true;
+            try {
+                flush();
+            }
+            catch (RuntimeException flushError) {
+                e.addSuppressed(flushError);
+            }
+            child.onError(e);
+        }
+
+        private void flush()
+        {
+            if (buffer.isEmpty()) {
+                return;
+            }
+            ldb.put(writeBatch -> {
+                for (Map.Entry<String, String> entry : buffer) {
+                    writeBatch.put(entry.getKey(), bytes(entry.getValue()));
+                }
+            });
+            committed += buffer.size();
+            buffer.clear();
+            if (requested.get() != Long.MAX_VALUE) {
+                requested.decrementAndGet();
+            }
+            child.onNext(committed);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.github.ramiyer.jdbc;
+
+import com.github.ramiyer.leveldb.DataStoreException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class JdbcDataStoreTest {
+
+    private File file;
+
+    private JdbcDataStore store;
+
+    @BeforeMethod
+    public void open() throws Exception {
+        file = File.createTempFile("jdbc-data-store", ".db");
+        store = JdbcDataStore.sqlite(file, 2);
+    }
+
+    @AfterMethod
+    public void close() throws IOException {
+        store.close();
+        for (String suffix : Arrays.asList("", "-wal", "-shm")) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    @Test
+    public void rowsPerUpsertStaysWithinSqliteParameterLimit() {
+        assertEquals(store.rowsPerUpsert, 499);
+    }
+
+    @Test
+    public void putSingleEntry() throws Exception {
+        store.put("k", "v");
+        assertEquals(store.get("k"), "v");
+        assertNull(store.get("missing"));
+    }
+
+    @Test
+    public void putAllExactlyOneChunk() throws Exception {
+        assertPutAll(store.rowsPerUpsert);
+    }
+
+    @Test
+    public void putAllOneAboveChunk() throws Exception {
+        assertPutAll(store.rowsPerUpsert + 1);
+    }
+
+    @Test
+    public void putAllExactlyTwoChunks() throws Exception {
+        assertPutAll(store.rowsPerUpsert * 2);
+    }
+
+    @Test
+    public void putAllChunksAndRemainder() throws Exception {
+        assertPutAll(store.rowsPerUpsert * 3 + 7);
+    }
+
+    @Test
+    public void putAllReplacesExistingValues() throws Exception {
+        store.putAll(entries(store.rowsPerUpsert + 1, "old"));
+        store.putAll(entries(store.rowsPerUpsert + 1, "new"));
+        Map<String, String> values = store.getAll(entries(store.rowsPerUpsert + 1, "new").keySet());
+        assertEquals(values, entries(store.rowsPerUpsert + 1, "new"));
+    }
+
+    @Test
+    public void getAllExactly999Keys() throws Exception {
+        assertGetAll(999);
+    }
+
+    @Test
+    public void getAllOver999Keys() throws Exception {
+        assertGetAll(1000);
+        assertGetAll(2500);
+    }
+
+    @Test
+    public void getAllSkipsMissingKeys() throws Exception {
+        store.putAll(entries(1500, "v"));
+        List<String> keys = new ArrayList<>(entries(1500, "v").keySet());
+        keys.add("missing1");
+        keys.add("missing2");
+        assertEquals(store.getAll(keys), entries(1500, "v"));
+    }
+
+    @Test
+    public void prefixUpperBound() {
+        assertEquals(JdbcDataStore.prefixUpperBound("abc"), "abd");
+        assertEquals(JdbcDataStore.prefixUpperBound("a\uffff"), "b");
+        assertEquals(JdbcDataStore.prefixUpperBound("ab\uffff\uffff"), "ac");
+        assertNull(JdbcDataStore.prefixUpperBound("\uffff"));
+        assertNull(JdbcDataStore.prefixUpperBound(""));
+    }
+
+    @Test
+    public void findByPrefixReturnsOnlyMatchingKeysInOrder() throws Exception {
+        for (String key : Arrays.asList("a", "ab", "abc", "abd", "ab\uffff", "ab\uffffz", "ac", "b")) {
+            store.put(key, "v_" + key);
+        }
+        assertEquals(store.findByPrefix("ab", 0), Arrays.asList("ab", "abc", "abd", "ab\uffff", "ab\uffffz"));
+        assertEquals(store.findByPrefix("ab", 2), Arrays.asList("", "c", "d", "\uffff", "\uffffz"));
+        assertEquals(store.findByPrefix("ab\uffff", 0), Arrays.asList("ab\uffff", "ab\uffffz"));
+        assertEquals(store.findByPrefix("x", 0), Arrays.asList());
+        assertEquals(store.findByPrefix("", 0).size(), 8);
+    }
+
+    @Test
+    public void scanPrefixStreamsEntriesInKeyOrder() throws Exception {
+        store.putAll(entries(2500, "v"));
+        store.put("other", "x");
+        List<String> keys = new ArrayList<>();
+        store.scanPrefix("key1", (key, value) -> {
+            assertEquals(value, "v" + key.substring(3));
+            keys.add(key);
+        });
+        List<String> expected = new ArrayList<>();
+        for (String key : entries(2500, "v").keySet()) {
+            if (key.startsWith("key1")) {
+                expected.add(key);
+            }
+        }
+        expected.sort(null);
+        assertEquals(keys, expected);
+    }
+
+    @Test
+    public void failuresNameTheTableAndOperation() throws Exception {
+        store.close();
+        try {
+            store.get("k");
+            fail("get on a closed store");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("read key k from kv"), e.getMessage());
+        }
+        try {
+            store.getAll(Arrays.asList("a", "b"));
+            fail("getAll on a closed store");
+        } catch (DataStoreException e) {
+            assertTrue(e.getMessage().contains("read 2 keys from kv"), e.getMessage());
+        }
+        try {
+            store.findByPrefix("ab", 0);
+            fail("findByPrefix on a closed store");
+        } catch (DataStoreException e) {
+            assertTrue(e.getMessage().contains("scan kv for prefix ab"), e.getMessage());
+        }
+    }
+
+    private void assertPutAll(int count) throws Exception {
+        Map<String, String> entries = entries(count, "v");
+        store.putAll(entries);
+        assertEquals(store.findByPrefix("key", 0).size(), count);
+        assertEquals(store.getAll(entries.keySet()), entries);
+    }
+
+    private void assertGetAll(int count) throws Exception {
+        store.putAll(entries(count, "v"));
+        assertEquals(store.getAll(entries(count, "v").keySet()), entries(count, "v"));
+    }
+
+    private static Map<String, String> entries(int count, String valuePrefix) {
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            entries.put("key" + i, valuePrefix + i);
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.ramiyer.leveldb;
+
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.impl.DbImpl;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+public class ChangeFeedTest {
+
+    private File directory;
+
+    private LDB ldb;
+
+    @BeforeMethod
+    public void open() throws IOException {
+        directory = Files.createTempDirectory("change-feed").toFile();
+        ldb = open(directory);
+    }
+
+    @AfterMethod
+    public void close() throws IOException {
+        ldb.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void sequencesContinueAcrossReopen() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            ldb.put("k" + i, "v" + i);
+        }
+        reopen();
+        assertEquals(ldb.changeFeed().getLastSequence(), 5);
+
+        for (int i = 6; i <= 12; i++) {
+            ldb.put("k" + i, "v" + i);
+        }
+        List<ChangeFeed.MutationBatch> batches = new ArrayList<>();
+        ldb.changeFeed().subscribe(5, batches::add);
+        assertEquals(batches.size(), 7);
+        for (int i = 0; i < batches.size(); i++) {
+            ChangeFeed.MutationBatch batch = batches.get(i);
+            assertEquals(batch.sequence, 6 + i);
+            assertEquals(batch.mutations.get(0).key, "k" + (6 + i));
+            assertEquals(batch.mutations.get(0).valueAsString(), "v" + (6 + i));
+        }
+    }
+
+    @Test
+    public void deletesAndAtomicWritesAreSequencedAcrossReopen() throws Exception {
+        ldb.put("a", "1");
+        ldb.delete("a");
+        ldb.put(batch -> {
+            batch.put("b", "2".getBytes());
+            batch.put("c", "3".getBytes());
+        });
+        ldb.put(batch -> {
+        });
+        reopen();
+        assertEquals(ldb.changeFeed().getLastSequence(), 3);
+        ldb.delete("b");
+        assertEquals(ldb.changeFeed().get(4).mutations.get(0).key, "b");
+    }
+
+    @Test
+    public void cursorsFromBeforeReopenAreExpired() throws Exception {
+        for (int i = 1; i <= 5; i++) {
+            ldb.put("k" + i, "v" + i);
+        }
+        reopen();
+        ldb.put("k6", "v6");
+        assertExpired(4);
+        assertExpired(0);
+        assertExpired(7);
+        ldb.changeFeed().checkCursor(5);
+        ldb.changeFeed().checkCursor(6);
+    }
+
+    @Test
+    public void newStoreStartsAtOne() throws Exception {
+        assertEquals(ldb.changeFeed().getLastSequence(), 0);
+        ldb.changeFeed().checkCursor(0);
+        ldb.put("k", "v");
+        assertEquals(ldb.changeFeed().get(1).sequence, 1);
+    }
+
+    private void reopen() throws IOException {
+        ldb.close();
+        ldb = open(directory);
+    }
+
+    private void assertExpired(long afterSequence) {
+        try {
+            ldb.changeFeed().checkCursor(afterSequence);
+            fail("cursor " + afterSequence + " was accepted");
+        } catch (ChangeFeed.CursorExpiredException expected) {
+        }
+    }
+
+    private static LDB open(File directory) throws IOException {
+        Options options = new Options();
+        options.createIfMissing(true);
+        return new LDB(new DbImpl(options, directory), 16);
+    }
+}
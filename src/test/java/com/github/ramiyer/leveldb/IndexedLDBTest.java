@@ -0,0 +1,66 @@
+package com.github.ramiyer.leveldb;
+
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.impl.DbImpl;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+
+public class IndexedLDBTest {
+
+    /**
+     * U+FF61 sorts after U+1F600 in UTF-16 but before it in UTF-8.
+     */
+    private static final String HALFWIDTH = "\uff61";
+
+    private static final String EMOJI = "\ud83d\ude00";
+
+    private File directory;
+
+    private IndexedLDB ldb;
+
+    @BeforeMethod
+    public void open() throws IOException {
+        directory = Files.createTempDirectory("indexed-ldb").toFile();
+        Options options = new Options();
+        options.createIfMissing(true);
+        ldb = new IndexedLDB(new LDB(new DbImpl(options, directory)));
+        ldb.addIndex(IndexedLDB.Index.of("name", value -> value)).run();
+        ldb.put("k1", "a");
+        ldb.put("k2", "b");
+        ldb.put("k3", HALFWIDTH);
+        ldb.put("k4", EMOJI);
+    }
+
+    @AfterMethod
+    public void close() throws IOException {
+        ldb.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void lookupRangeFollowsByteOrder() {
+        assertEquals(ldb.lookupRange("name", "a", "\uff62"), Arrays.asList("k1", "k2", "k3"));
+        assertEquals(ldb.lookupRange("name", HALFWIDTH, null), Arrays.asList("k3", "k4"));
+        assertEquals(ldb.lookupRange("name", "b", EMOJI), Arrays.asList("k2", "k3"));
+    }
+
+    @Test
+    public void lookupRangeWithoutLowerBound() {
+        assertEquals(ldb.lookupRange("name", null, "b"), Arrays.asList("k1"));
+        assertEquals(ldb.lookupRange("name", null, null), Arrays.asList("k1", "k2", "k3", "k4"));
+    }
+}
@@ -0,0 +1,180 @@
+package com.github.ramiyer.nicety;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class DirectedGraphSnapshotTest {
+
+    private static final int KEYS = 200;
+
+    @Test
+    public void snapshotIsUnchangedWhileWritersRun() throws Exception {
+        DirectedGraph<Integer> graph = new DirectedGraph<>(true);
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            graph.addEdge(random.nextInt(KEYS), random.nextInt(KEYS), random.nextInt(5));
+        }
+        DirectedGraph<Integer> snapshot = graph.snapshot();
+        Map<Integer, Map<Integer, Double>> sinks = sinks(snapshot);
+        Map<Integer, Set<Integer>> sources = sources(snapshot);
+        assertConsistent(snapshot);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch started = new CountDownLatch(4);
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            int seed = i;
+            Thread writer = new Thread(() -> {
+                started.countDown();
+                try {
+                    write(graph, new Random(seed), running);
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        started.await();
+        try {
+            for (int i = 0; i < 20; i++) {
+                assertEquals(sinks(snapshot), sinks);
+                assertEquals(sources(snapshot), sources);
+                DirectedGraph<Integer> concurrent = graph.snapshot();
+                assertConsistent(concurrent);
+                concurrent.release();
+            }
+        } finally {
+            running.set(false);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("writer failed", failure.get());
+        }
+        assertEquals(sinks(snapshot), sinks);
+        assertEquals(sources(snapshot), sources);
+        snapshot.release();
+        assertConsistent(graph);
+    }
+
+    @Test
+    public void releaseLetsRemovedVerticesBeReclaimed() {
+        DirectedGraph<Integer> graph = new DirectedGraph<>(true);
+        for (int i = 0; i < 100; i++) {
+            graph.addEdge(i, (i + 1) % 100);
+        }
+        DirectedGraph<Integer> snapshot = graph.snapshot();
+        graph.removeNodes(new ArrayList<>(graph.getVertexNodes()));
+
+        assertTrue(graph.getVertexNodes().isEmpty());
+        assertEquals(snapshot.getVertexNodes().size(), 100);
+        assertEquals(graph.storedVertexCount(), 100);
+
+        snapshot.release();
+        for (int i = 0; i < 10; i++) {
+            graph.addEdge(1000, 1001);
+            graph.removeEdge(1000, 1001);
+        }
+        assertEquals(graph.storedVertexCount(), 2);
+        try {
+            snapshot.getVertexNodes().size();
+            fail("released snapshot was readable");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void collectedSnapshotIsForgotten() throws InterruptedException {
+        DirectedGraph<Integer> graph = new DirectedGraph<>(true);
+        for (int i = 0; i < 100; i++) {
+            graph.addEdge(i, (i + 1) % 100);
+        }
+        graph.snapshot();
+        graph.removeNodes(new ArrayList<>(graph.getVertexNodes()));
+        for (int attempt = 0; attempt < 50 && graph.storedVertexCount() > 0; attempt++) {
+            System.gc();
+            Thread.sleep(20);
+            graph.removeNodes(Collections.emptyList());
+        }
+        assertEquals(graph.storedVertexCount(), 0);
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void snapshotIsReadOnly() {
+        DirectedGraph<Integer> graph = new DirectedGraph<>(true);
+        graph.addEdge(1, 2);
+        DirectedGraph<Integer> snapshot = graph.snapshot();
+        assertFalse(snapshot.isConsistent());
+        snapshot.addEdge(2, 1);
+    }
+
+    private static void write(DirectedGraph<Integer> graph, Random random, AtomicBoolean running) {
+        while (running.get()) {
+            int source = random.nextInt(KEYS);
+            int sink = random.nextInt(KEYS);
+            int op = random.nextInt(100);
+            if (op < 50) {
+                graph.addEdge(source, sink, random.nextInt(5));
+            } else if (op < 90) {
+                graph.removeEdge(source, sink);
+            } else if (op < 98) {
+                graph.removeNode(source);
+            } else {
+                graph.removeNodes(Arrays.asList(source, sink));
+            }
+        }
+    }
+
+    private static Map<Integer, Map<Integer, Double>> sinks(DirectedGraph<Integer> graph) {
+        Map<Integer, Map<Integer, Double>> sinks = new TreeMap<>();
+        for (Integer key : graph.getVertexNodes()) {
+            Map<Integer, Double> weights = new TreeMap<>();
+            for (Integer sink : graph.getSinkEdges(key)) {
+                weights.put(sink, graph.getEdgeWeight(key, sink));
+            }
+            sinks.put(key, weights);
+        }
+        return sinks;
+    }
+
+    private static Map<Integer, Set<Integer>> sources(DirectedGraph<Integer> graph) {
+        Map<Integer, Set<Integer>> sources = new TreeMap<>();
+        for (Integer key : graph.getVertexNodes()) {
+            sources.put(key, new TreeSet<>(graph.getSourceEdges(key)));
+        }
+        return sources;
+    }
+
+    private static void assertConsistent(DirectedGraph<Integer> graph) {
+        for (Integer key : graph.getVertexNodes()) {
+            for (Integer sink : graph.getSinkEdges(key)) {
+                Set<Integer> sources = graph.getSourceEdges(sink);
+                assertTrue(sources != null && sources.contains(key), key + " -> " + sink + " has no reverse edge");
+            }
+            for (Integer source : graph.getSourceEdges(key)) {
+                Set<Integer> sinks = graph.getSinkEdges(source);
+                assertTrue(sinks != null && sinks.contains(key), source + " -> " + key + " has no forward edge");
+            }
+        }
+    }
+}
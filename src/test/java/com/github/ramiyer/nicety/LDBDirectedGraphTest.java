@@ -0,0 +1,119 @@
+package com.github.ramiyer.nicety;
+
+import com.github.ramiyer.leveldb.LDB;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.impl.DbImpl;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+
+public class LDBDirectedGraphTest {
+
+    private File directory;
+
+    private LDB ldb;
+
+    private LDBDirectedGraph graph;
+
+    @BeforeMethod
+    public void open() throws IOException {
+        directory = Files.createTempDirectory("ldb-directed-graph").toFile();
+        Options options = new Options();
+        options.createIfMissing(true);
+        ldb = new LDB(new DbImpl(options, directory));
+        graph = new LDBDirectedGraph(ldb, 8);
+    }
+
+    @AfterMethod
+    public void close() throws IOException {
+        ldb.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void matchesInMemoryGraph() {
+        DirectedGraph<String> expected = new DirectedGraph<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 600; i++) {
+            String source = "n" + random.nextInt(150);
+            String sink = "n" + random.nextInt(150);
+            graph.addEdge(source, sink);
+            expected.addEdge(source, sink);
+        }
+        for (int i = 0; i < 5; i++) {
+            String key = "n" + random.nextInt(150);
+            assertEquals(graph.removeNode(key), expected.removeNode(key));
+        }
+        graph.addNode("isolated");
+        expected.addNode("isolated");
+
+        assertEquals(graph.getVertexNodes(), expected.getVertexNodes());
+        assertEquals(graph.stronglyConnectedComponents(), expected.stronglyConnectedComponents());
+        assertEquals(graph.allCycles(), expected.allCycles());
+        for (String key : expected.getVertexNodes()) {
+            assertEquals(graph.getSinkEdges(key), expected.getSinkEdges(key));
+            assertEquals(graph.getSourceEdges(key), expected.getSourceEdges(key));
+        }
+        for (int i = 0; i < 150; i += 17) {
+            String key = "n" + i;
+            assertEquals(graph.sinksClosure(key), expected.sinksClosure(key));
+            assertEquals(graph.transitiveClosure(key), expected.transitiveClosure(key));
+        }
+    }
+
+    @Test
+    public void stronglyConnectedComponentsOfLongChain() {
+        int length = 20000;
+        for (int i = 0; i < length; i++) {
+            graph.addEdge("c" + i, "c" + (i + 1));
+        }
+        graph.addEdge("c" + length, "c0");
+        Set<Set<String>> components = graph.stronglyConnectedComponents();
+        assertEquals(components.size(), 1);
+        assertEquals(components.iterator().next().size(), length + 1);
+    }
+
+    @Test
+    public void traversalsDoNotFillTheCache() {
+        for (int i = 0; i < 100; i++) {
+            graph.addEdge("hub", "v" + i);
+            graph.addEdge("v" + i, "hub");
+        }
+        graph.getSinkEdges("hub");
+        assertEquals(graph.cachedAdjacencyLists(), 1);
+
+        graph.stronglyConnectedComponents();
+        graph.transitiveClosure("v0");
+        graph.allCycles();
+        assertEquals(graph.cachedAdjacencyLists(), 1);
+    }
+
+    @Test
+    public void forEachVertexStreamsInKeyOrder() {
+        graph.addEdge("b", "a");
+        graph.addNode("c");
+        List<String> vertices = new ArrayList<>();
+        graph.forEachVertex(vertices::add);
+        assertEquals(vertices.size(), 3);
+        assertEquals(new HashSet<>(vertices), graph.getVertexNodes());
+        assertEquals(vertices.get(0), "a");
+        assertEquals(vertices.get(2), "c");
+    }
+}
@@ -0,0 +1,123 @@
+package com.github.ramiyer.nicety;
+
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public class PersistentHashMapTest {
+
+    @Test
+    public void randomUpdatesMatchHashMap() {
+        assertMatchesHashMap(new Random(1), 2000, Integer::valueOf);
+    }
+
+    @Test
+    public void randomUpdatesWithCollidingHashesMatchHashMap() {
+        // eight distinct hashes for 2000 keys puts most keys in collision nodes
+        assertMatchesHashMap(new Random(2), 2000, i -> new Colliding(i, i % 8));
+    }
+
+    @Test
+    public void collidingHashesDifferingInHighBits() {
+        // equal low bits push the keys down several levels before they split
+        assertMatchesHashMap(new Random(3), 500, i -> new Colliding(i, (i % 4) << 28));
+    }
+
+    @Test
+    public void olderVersionsAreUnchanged() {
+        PersistentHashMap<Integer, Integer> map = PersistentHashMap.empty();
+        for (int i = 0; i < 1000; i++) {
+            map = map.plus(i, i);
+        }
+        PersistentHashMap<Integer, Integer> before = map;
+        for (int i = 0; i < 1000; i += 2) {
+            map = map.minus(i).plus(i + 1, -i);
+        }
+        assertEquals(before.size(), 1000);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(before.get(i), Integer.valueOf(i));
+        }
+        assertEquals(map.size(), 500);
+    }
+
+    @Test
+    public void unchangedUpdatesReturnSameMap() {
+        PersistentHashMap<String, String> map = PersistentHashMap.<String, String>empty().plus("a", "1");
+        assertSame(map.plus("a", "1"), map);
+        assertSame(map.minus("b"), map);
+        assertSame(map.minus("a"), PersistentHashMap.empty());
+        assertNull(map.get(null));
+        assertFalse(map.containsKey(null));
+    }
+
+    private static <K> void assertMatchesHashMap(Random random, int keys, IntFunction<K> key) {
+        Map<K, Integer> expected = new HashMap<>();
+        PersistentHashMap<K, Integer> map = PersistentHashMap.empty();
+        for (int i = 0; i < 50000; i++) {
+            K k = key.apply(random.nextInt(keys));
+            if (random.nextInt(3) == 0) {
+                expected.remove(k);
+                map = map.minus(k);
+            } else {
+                int value = random.nextInt(10);
+                expected.put(k, value);
+                map = map.plus(k, value);
+            }
+            if (i % 5000 == 0) {
+                assertSameContents(map, expected);
+            }
+        }
+        assertSameContents(map, expected);
+        for (K k : new HashSet<>(expected.keySet())) {
+            map = map.minus(k);
+        }
+        assertEquals(map.size(), 0);
+        assertFalse(map.keySet().iterator().hasNext());
+    }
+
+    private static <K> void assertSameContents(PersistentHashMap<K, Integer> map, Map<K, Integer> expected) {
+        assertEquals(map.size(), expected.size());
+        assertEquals(new HashSet<>(map.keySet()), expected.keySet());
+        int iterated = 0;
+        for (K k : map.keySet()) {
+            iterated++;
+        }
+        assertEquals(iterated, expected.size());
+        for (Map.Entry<K, Integer> entry : expected.entrySet()) {
+            assertTrue(map.containsKey(entry.getKey()));
+            assertEquals(map.get(entry.getKey()), entry.getValue());
+        }
+    }
+
+    private static final class Colliding {
+
+        private final int id;
+
+        private final int hash;
+
+        Colliding(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Colliding && ((Colliding) other).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}